@@ -6,7 +6,7 @@ public class Main {
 
     public static void main(String[] args) {
 
-        FeedForwardNetworkV4 network = new FeedForwardNetworkV4(2, 1, 1, 3, new ActivationSigmoid());
+        FeedForwardNetworkV4 network = new FeedForwardNetworkV4(2, 1, 1, 3, ActivationSigmoid.INSTANCE);
 
         Matrix[] inputs = new Matrix[] {
                 Matrix.newRowMatrix(new double[] {0,0}),
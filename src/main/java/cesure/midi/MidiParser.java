@@ -34,7 +34,7 @@ public class MidiParser implements Serializable {
      ****************************************************************/
     public static CesureMusic midiFileToCesureMusic(MidiFile file) {
         Matrix infos = midiToNetworkInfos(file);
-        int bpm = (int) Math.round(infos.array[0][0] * TEMPO_BPM_RANGE);
+        int bpm = (int) Math.round(infos.get(0,0) * TEMPO_BPM_RANGE);
         Matrix[] notes = midiToNetworkChords(file, bpm);
         return new CesureMusic(infos,notes);
     }
@@ -179,19 +179,19 @@ public class MidiParser implements Serializable {
     public static MidiFile cesureMusicToMidiFile(CesureMusic music, int firstOctave) {
         final int firstKey = 12 * firstOctave;
 
-        Matrix infos = music.infos;
-        Matrix[] notes = music.chords;
+        Matrix infos = music.getInfos();
+        Matrix[] notes = music.getChords();
 
-        int bpm = (int) Math.round(infos.array[0][0] * TEMPO_BPM_RANGE);
+        int bpm = (int) Math.round(infos.get(0,0) * TEMPO_BPM_RANGE);
 
         MidiTrack headerTrack = new MidiTrack();
         Tempo tempo = new Tempo();
         tempo.setBpm(bpm);
         TimeSignature timeSignature = new TimeSignature(0,0,
-                (int) Math.round(infos.array[0][1] * TSIGNATURE_NUMERATOR_RANGE),
-                (int) Math.round(infos.array[0][2] * TSIGNATURE_DENOMINATOR_RANGE),
-                (int) Math.round(infos.array[0][3] * TSIGNATURE_METER_RANGE),
-                (int) Math.round(infos.array[0][4] * TSIGNATURE_DIVISION_RANGE));
+                (int) Math.round(infos.get(0,1) * TSIGNATURE_NUMERATOR_RANGE),
+                (int) Math.round(infos.get(0,2) * TSIGNATURE_DENOMINATOR_RANGE),
+                (int) Math.round(infos.get(0,3) * TSIGNATURE_METER_RANGE),
+                (int) Math.round(infos.get(0,4) * TSIGNATURE_DIVISION_RANGE));
 
         headerTrack.insertEvent(tempo);
         headerTrack.insertEvent(timeSignature);
@@ -201,12 +201,12 @@ public class MidiParser implements Serializable {
             boolean noteIsOn = false;
             for (int tickI=0; tickI<notes.length; tickI++){
                 if (noteIsOn) {
-                    if (notes[tickI].array[0][keyI] <= 0.5) {
+                    if (notes[tickI].get(0,keyI) <= 0.5) {
                         noteTrack.insertEvent(new NoteOff((tickI-1)*bpm,0, keyI+firstKey, 128));
                         noteIsOn = false;
                     }
                 } else {
-                    if (notes[tickI].array[0][keyI] >= 0.5) {
+                    if (notes[tickI].get(0,keyI) >= 0.5) {
                         noteTrack.insertEvent(new NoteOn(tickI*bpm,0, keyI+firstKey, 128));
                         noteIsOn = true;
                     }
@@ -1,20 +1,20 @@
 package cesure.network;
 
-import cesure.network.activation.ActivationSigmoid;
-import cesure.network.activation.ActivationTanh;
+import cesure.utils.FloatMatrix;
 import cesure.utils.Matrix;
 import cesure.utils.SerializationManager;
+import cesure.utils.SparseRowMatrix;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Random;
-
-import static cesure.utils.MatrixMath.Matrix_concatenateRowMatrix;
-import static cesure.utils.MatrixMath.Matrix_pMult;
-import static cesure.utils.MatrixMath.Matrix_substract;
+import java.util.random.RandomGenerator;
 
 public class Cesure implements Serializable {
 
+    // The serialVersionUID computed for the class before the models and states, so older saves still load
+    private static final long serialVersionUID = 8142554927509540591L;
+
     public static final int NB_NOTES;
     public static final int NB_OCTAVES;
 
@@ -46,46 +46,82 @@ public class Cesure implements Serializable {
     }
 
 
-    private CesureGate outputGate;
-    private CesureGate forgetGate;
-    private CesureGate memoryGate;
-    private CesureGate memoryInputGate;
-
-    private Matrix context;
-    private Matrix infos;
+    // The weights, which setGates() may share with other networks, and the state of this network's music
+    private CesureModel model;
+    private RecurrentState state;
 
 
     /****************************************************************
      * Default constructor
      ****************************************************************/
     public Cesure() {
-        outputGate = CesureGate.newAutoCesureGate2(OUTPUTGATE_INPUT_SIZE, OUTPUTGATE_OUTPUT_SIZE, new ActivationSigmoid(), 4);
-        forgetGate = CesureGate.newAutoCesureGate2(CONTEXTGATES_INPUT_SIZE, CONTEXTGATES_OUTPUT_SIZE, new ActivationSigmoid(), 4);
-        memoryGate = CesureGate.newAutoCesureGate2(CONTEXTGATES_INPUT_SIZE, CONTEXTGATES_OUTPUT_SIZE, new ActivationSigmoid(), 4);
-        memoryInputGate = CesureGate.newAutoCesureGate2(CONTEXTGATES_INPUT_SIZE, CONTEXTGATES_OUTPUT_SIZE, new ActivationTanh(), 4);
+        this(0);
+    }
 
-        infos = Matrix.newRowMatrix(INFOS_DIMENSION);
-        context = Matrix.newRowMatrix(CONTEXT_DIMENSION);
+    /****************************************************************
+     * Constructor of a network whose gates have low-rank layers
+     * @param rank The rank of the gates' factorized layers, 0 for
+     *             full-rank layers
+     ****************************************************************/
+    public Cesure(int rank) {
+        this(new CesureModel(rank));
+    }
 
-        startNewMusic( Matrix.newRowMatrix(0,0,0,0,0) );
+    /****************************************************************
+     * Constructor of a network on the weights of a model, with a
+     * new state
+     * @param model The model, which can be shared
+     ****************************************************************/
+    public Cesure(CesureModel model) {
+        this.model = model;
+        state = model.newState();
     }
 
 
     /****************************************************************
      * Copy constructor with an amount of randomization, using the
-     * random of a Random object
+     * random of a generator
      * @param cloned The CesureFeedForwardGate object to clone
-     * @param rand The Random object
+     * @param rand The generator
      * @param magnitude The weights random changes magnitude
      ****************************************************************/
-    public Cesure(Cesure cloned, Random rand, double magnitude) {
-        outputGate = new CesureGate(cloned.outputGate, rand, magnitude);
-        forgetGate = new CesureGate(cloned.forgetGate, rand, magnitude);
-        memoryGate = new CesureGate(cloned.memoryGate, rand, magnitude);
-        memoryInputGate  =new CesureGate(cloned.memoryInputGate, rand, magnitude);
-
-        infos = cloned.infos.cp();
-        context = cloned.context.cp();
+    public Cesure(Cesure cloned, RandomGenerator rand, double magnitude) {
+        model = new CesureModel(cloned.model, rand, magnitude);
+        state = new RecurrentState(model, cloned.state);
+    }
+
+    /****************************************************************
+     * Load a network, also in the form saved before the models and
+     * states : its four gates, infos and context
+     ****************************************************************/
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        if (fields.defaulted("model")) {
+            model = new CesureModel((CesureGate) fields.get("outputGate", null), (CesureGate) fields.get("forgetGate", null),
+                    (CesureGate) fields.get("memoryGate", null), (CesureGate) fields.get("memoryInputGate", null));
+            state = new RecurrentState(model, (Matrix) fields.get("infos", null), (Matrix) fields.get("context", null));
+        } else {
+            model = (CesureModel) fields.get("model", null);
+            state = (RecurrentState) fields.get("state", null);
+        }
+    }
+
+    public CesureModel getModel() {
+        return model;
+    }
+
+    public RecurrentState getState() {
+        return state;
+    }
+
+    /****************************************************************
+     * Choose how the context gates are computed
+     * @param fused True to compute them together, reading their
+     *              shared input once, false to compute them one by
+     *              one (the default)
+     ****************************************************************/
+    public void setFusedContextGates(boolean fused) {
+        state.setFusedContextGates(fused);
     }
 
 
@@ -96,34 +132,31 @@ public class Cesure implements Serializable {
      * @return The computed note
      ****************************************************************/
     public Matrix computeNextNote() {
-        // Comppute output
-        final Matrix infosAndContext = Matrix_concatenateRowMatrix(infos,context);
-        final Matrix outputVect = outputGate.compute(infosAndContext);
-
-        // Compute context update
-        final Matrix contextInput = Matrix_concatenateRowMatrix(infosAndContext, outputVect);
-        final  Matrix forgetVect = forgetGate.compute(contextInput);
-        context.pMult(forgetVect);
-        final Matrix rememberVect = Matrix_pMult(memoryGate.compute(contextInput), memoryInputGate.compute(contextInput));
-        context.add(rememberVect);
-
-        return outputVect;
+        return model.computeNextNote(state);
+    }
+
+    /****************************************************************
+     * Compute the next music's note into a caller-owned row matrix
+     * Will change the context according to the outputed note
+     * @param result The row matrix receiving the note
+     * @return result
+     ****************************************************************/
+    public Matrix computeNextNote(Matrix result) {
+        return model.computeNextNote(state, result);
+    }
+
+    /****************************************************************
+     * Compute the next music's note without allocating anything
+     * Will change the context according to the outputed note
+     * @return A view on this network's note workspace : the next
+     *         step overwrites it, copy it to keep it
+     ****************************************************************/
+    public Matrix computeNextNoteView() {
+        return model.computeNextNoteView(state);
     }
 
     public CesureComputeInfos computeNextNoteAndGetInfos() {
-        // Comppute output
-        final Matrix infosAndContext = Matrix_concatenateRowMatrix(infos,context);
-        final CesureGateComputeInfos outputGateInfos = outputGate.computeAndGetInfos(infosAndContext);
-
-        // Compute context update
-        final Matrix contextInput = Matrix_concatenateRowMatrix(infosAndContext, outputGateInfos.output);
-        final CesureGateComputeInfos forgetGateInfos = forgetGate.computeAndGetInfos(contextInput);
-        context.pMult(forgetGateInfos.output);
-        final CesureGateComputeInfos memoryGateInfos = memoryGate.computeAndGetInfos(contextInput);
-        final CesureGateComputeInfos memoryInputGateInfos = memoryInputGate.computeAndGetInfos(contextInput);
-        context.add( Matrix_pMult(memoryGateInfos.output, memoryInputGateInfos.output) );
-
-        return new CesureComputeInfos(outputGateInfos,forgetGateInfos,memoryGateInfos,memoryInputGateInfos);
+        return model.computeNextNoteAndGetInfos(state);
     }
 
 
@@ -134,11 +167,53 @@ public class Cesure implements Serializable {
      * @param note The note to input
      ****************************************************************/
     public void inputNextNote(Matrix note) {
-        final Matrix contextInput = Matrix_concatenateRowMatrix(Matrix_concatenateRowMatrix(infos,context), note);
-        final Matrix forgetVect = forgetGate.compute(contextInput);
-        context.pMult(forgetVect);
-        final Matrix rememberVect = Matrix_pMult(memoryGate.compute(contextInput), memoryInputGate.compute(contextInput));
-        context.add(rememberVect);
+        model.inputNextNote(state, note);
+    }
+
+    /****************************************************************
+     * Input the next music's note, given by its played notes only :
+     * the context gates skip the weights of the silent ones
+     * @param note The note to input
+     ****************************************************************/
+    public void inputNextNote(SparseRowMatrix note) {
+        model.inputNextNote(state, note);
+    }
+
+
+    /****************************************************************
+     * Single precision version of computeNextNote(), working on
+     * caller-owned infos and context vectors instead of this
+     * network's ones
+     * @param infos The music infos vector
+     * @param context The context vector, will be updated
+     * @return The computed note
+     ****************************************************************/
+    public FloatMatrix computeNextNote(FloatMatrix infos, FloatMatrix context) {
+        return model.computeNextNote(infos, context);
+    }
+
+    /****************************************************************
+     * Single precision version of computeNextNote(Matrix), working
+     * on caller-owned infos and context vectors
+     * @param infos The music infos vector
+     * @param context The context vector, will be updated
+     * @param result The row matrix receiving the note
+     * @return result
+     ****************************************************************/
+    public FloatMatrix computeNextNote(FloatMatrix infos, FloatMatrix context, FloatMatrix result) {
+        return model.computeNextNote(infos, context, result);
+    }
+
+    /****************************************************************
+     * Single precision version of inputNextNote(), working on
+     * caller-owned infos and context vectors instead of this
+     * network's ones
+     * @param infos The music infos vector
+     * @param context The context vector, will be updated
+     * @param note The note to input
+     ****************************************************************/
+    public void inputNextNote(FloatMatrix infos, FloatMatrix context, FloatMatrix note) {
+        model.inputNextNote(infos, context, note);
     }
 
 
@@ -147,26 +222,18 @@ public class Cesure implements Serializable {
      * @param infos The music infos vector for the new music
      ****************************************************************/
     public void startNewMusic(Matrix infos) {
-        if (infos.length != INFOS_DIMENSION) {
-            throw new NeuralNetworkError("CesureLSTM.startNewMusic(double[])");
-        }
-        context.setZero();
-        for (int i=0; i<infos.length; i++) {
-            this.infos.set(i, infos.array[0][i]);
-        }
+        state.startNewMusic(infos);
     }
 
     /****************************************************************
      * Set the gates according to a CesureLSTM object
+     * The model is shared, the infos and context are copied : the
+     * two networks then go on independently
      * @param network The network to take the gates from
      ****************************************************************/
     public void setGates(Cesure network) {
-        outputGate = network.outputGate;
-        forgetGate = network.forgetGate;
-        memoryGate = network.memoryGate;
-        memoryInputGate = network.memoryInputGate;
-        context = network.context;
-        infos = network.infos;
+        model = network.model;
+        state = new RecurrentState(model, network.state);
     }
 
 
@@ -180,19 +247,21 @@ public class Cesure implements Serializable {
      * @return The error sum
      ****************************************************************/
     public double calculateErrorSum(CesureMusic music, int start) {
-        Matrix[] chords = music.chords;
-        int nbChords = chords.length;
-
-        startNewMusic(music.infos);
-        double errorSum = 0;
-        for (int chordI=0; chordI<nbChords; chordI++) {
-            if (chordI<start) {
-                inputNextNote(chords[chordI]);
-            } else {
-                errorSum += Math.abs(Matrix_substract(chords[chordI], computeNextNote()).avg());
-            }
-        }
-        return errorSum;
+        return model.calculateErrorSum(state, music, start);
+    }
+
+
+
+
+    /****************************************************************
+     * Single precision version of calculateErrorSum()
+     * Doesn't change this network's context
+     * @param music The CesureMusic object to compute on
+     * @param start The first note to start add errors at
+     * @return The error sum
+     ****************************************************************/
+    public double calculateErrorSumFloat(CesureMusic music, int start) {
+        return model.calculateErrorSumFloat(music, start);
     }
 
 
@@ -234,12 +303,7 @@ public class Cesure implements Serializable {
      * @return The total number of neurons in this network
      ****************************************************************/
     public int getNbNeurons() {
-        int count = 0;
-        count += outputGate.getNbNeurons();
-        count += forgetGate.getNbNeurons();
-        count += memoryGate.getNbNeurons();
-        count += memoryInputGate.getNbNeurons();
-        return count;
+        return model.getNbNeurons();
     }
 
 
@@ -248,15 +312,7 @@ public class Cesure implements Serializable {
      * @param name The serialized file name
      ****************************************************************/
     public void print(String name) {
-        System.out.println("::: Printing "+name+" :::");
-        System.out.println("- Output Gate");
-        outputGate.print();
-        System.out.println("- Forget Gate");
-        forgetGate.print();
-        System.out.println("- Input Gate");
-        memoryGate.print();
-        System.out.println("- Remember Gate");
-        memoryInputGate.print();
+        model.print(name);
     }
 
 }
@@ -1,25 +1,67 @@
 package cesure.network;
 
 import cesure.network.activation.ActivationFunction;
+import cesure.utils.CompositeRowMatrix;
+import cesure.utils.FloatMatrix;
 import cesure.utils.Matrix;
-
+import cesure.utils.MatrixArena;
+import cesure.utils.MatrixKernels;
+import cesure.utils.RandomUtils;
+import cesure.utils.SparseRowMatrix;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
-import static cesure.utils.MatrixMath.Matrix_concatenateRowMatrix;
+import static cesure.utils.FloatMatrixMath.FloatMatrix_mDot;
+import static cesure.utils.MatrixMath.Matrix_affineTransposed;
 import static cesure.utils.MatrixMath.Matrix_mDot;
+import static cesure.utils.MatrixMath.Matrix_mDotTranspose;
+import static cesure.utils.MatrixMath.Matrix_transpose;
 
 public class CesureGate implements Serializable {
 
-    private static final Matrix inputBias = new Matrix(new double[][] {{1}}); // for comfort
+    // The serialVersionUID computed for the class before the low-rank layers, so older saves still load
+    private static final long serialVersionUID = 2149839618531948477L;
+
+    // The saved form keeps one matrix per layer, one row per input with the bias as the last row, and
+    // the factors of the low-rank layers one row per input too : see writeObject() and readObject()
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("inputDimension", int.class),
+            new ObjectStreamField("outputDimension", int.class),
+            new ObjectStreamField("nbLayers", int.class),
+            new ObjectStreamField("weights", Matrix[].class),
+            new ObjectStreamField("factors", Matrix[].class),
+            new ObjectStreamField("activation", ActivationFunction.class)
+    };
+
+    private int inputDimension;
+    private int outputDimension;
+    private int nbLayers;
+
+    // The weights of each layer stored transposed, one row per output : compute() takes each output
+    // as a dot product of the input with a contiguous row
+    private transient Matrix[] weights;
+    private transient Matrix[] biases;
+
+    // Low-rank layers : the weights of layer i are the product of factors[i] and weights[i], both
+    // transposed, factors[i] holding one row per rank. factors[i] is null for a full-rank layer
+    private transient Matrix[] factors;
 
-    private final int inputDimension;
-    private final int outputDimension;
-    private final int nbLayers;
+    private ActivationFunction activation;
 
-    private final Matrix[] weights;
+    // Row-major copies of weights and factors for computeBatch(), built on first use
+    private transient volatile Matrix[][] rowMajorLayers;
 
-    private final ActivationFunction activation;
+    // Row-major copy of the last columns of the first product, one row per column, for the sparse
+    // end of the inputs : built on first use for the width of that end
+    private transient volatile Matrix sparseRows;
+
+    // Single precision row-major copy of weights, biases and factors, built on first use
+    private transient volatile FloatMatrix[][] floatLayers;
 
     /****************************************************************
      * Default constructor
@@ -30,7 +72,27 @@ public class CesureGate implements Serializable {
      *                         hiddenDimensions.length hidden layers
      ****************************************************************/
     public CesureGate(final int inputDimension, final int outputDimension, final ActivationFunction activation, final int... hiddenDimensions) {
-        if (inputDimension < 1 || outputDimension < 1) {
+        this(inputDimension, outputDimension, activation, 0, hiddenDimensions);
+    }
+
+    /****************************************************************
+     * Constructor of a gate with low-rank layers : a layer whose
+     * weights matrix has more elements than its two factors of the
+     * given rank is stored and computed as their product
+     * @param inputDimension The input dimension
+     * @param outputDimension The output dimension
+     * @param activation The activation function
+     * @param rank The rank of the factorized layers, 0 for none
+     * @param hiddenDimensions The hidden layers dimensions, there is
+     *                         hiddenDimensions.length hidden layers
+     ****************************************************************/
+    public static CesureGate newLowRankCesureGate(final int inputDimension, final int outputDimension, final ActivationFunction activation,
+                                                  final int rank, final int... hiddenDimensions) {
+        return new CesureGate(inputDimension, outputDimension, activation, rank, hiddenDimensions);
+    }
+
+    private CesureGate(final int inputDimension, final int outputDimension, final ActivationFunction activation, final int rank, final int[] hiddenDimensions) {
+        if (inputDimension < 1 || outputDimension < 1 || rank < 0) {
             throw new NeuralNetworkError("CesureGate2(int,int,ActivationFunction,int)");
         }
         for (int i : hiddenDimensions) {
@@ -48,21 +110,35 @@ public class CesureGate implements Serializable {
         this.activation = activation;
 
         weights = new Matrix[nbLayers];
+        biases = new Matrix[nbLayers];
+        factors = new Matrix[nbLayers];
 
-        if (nbLayers == 1) { // nbLayers = 1
-            weights[0] = new Matrix(inputDimension+1, outputDimension); // +1 for bias
-        } else { // nbLayers >= 2
-            weights[0] = new Matrix(inputDimension+1, hiddenDimensions[0]); // +1 for bias
-            for (int i=1; i<nbHiddenLayers; i++) {
-                weights[i] = new Matrix(hiddenDimensions[i-1]+1, hiddenDimensions[i]); // +1 for bias
+        for (int i=0; i<nbLayers; i++) {
+            final int layerInput = i == 0 ? inputDimension : hiddenDimensions[i-1];
+            final int layerOutput = i == nbHiddenLayers ? outputDimension : hiddenDimensions[i];
+            biases[i] = new Matrix(1, layerOutput);
+            // weights[i] becomes the right factor : (out, rank)
+            if (rank > 0 && rank * (layerInput + layerOutput) < layerInput * layerOutput) {
+                factors[i] = new Matrix(rank, layerInput);
+                weights[i] = new Matrix(layerOutput, rank);
+            } else {
+                weights[i] = new Matrix(layerOutput, layerInput);
             }
-            weights[nbLayers-1] = new Matrix(hiddenDimensions[nbHiddenLayers-1]+1, outputDimension); // +1 for bias
         }
 
-        weightInit_XAVIER(new Random());
+        weightInit_XAVIER(RandomUtils.current());
     }
 
     public static CesureGate newAutoCesureGate2(final int inputDimension, final int outputDimension, final ActivationFunction activation, final int nbHiddenLayers) {
+        return newAutoCesureGate2(inputDimension, outputDimension, activation, nbHiddenLayers, 0);
+    }
+
+    /****************************************************************
+     * Version of newAutoCesureGate2() with low-rank layers
+     * @param rank The rank of the factorized layers, 0 for none
+     ****************************************************************/
+    public static CesureGate newAutoCesureGate2(final int inputDimension, final int outputDimension, final ActivationFunction activation,
+                                                final int nbHiddenLayers, final int rank) {
         if (nbHiddenLayers < 0) {
             throw new NeuralNetworkError("CesureGate2.newAutoCesureGate2(int,int,ActivationFunction,int)");
         }
@@ -73,7 +149,7 @@ public class CesureGate implements Serializable {
             hiddenDimensions[i] = (int) Math.round(x*outputDimension + (1-x)*inputDimension);
         }
 
-        return new CesureGate(inputDimension,outputDimension,activation,hiddenDimensions);
+        return new CesureGate(inputDimension,outputDimension,activation,rank,hiddenDimensions);
     }
 
     /****************************************************************
@@ -87,51 +163,135 @@ public class CesureGate implements Serializable {
         nbLayers = toClone.nbLayers;
 
         weights = new Matrix[nbLayers];
+        biases = new Matrix[nbLayers];
+        factors = new Matrix[nbLayers];
 
         activation = toClone.activation.clone();
 
         for (int layerI=0; layerI<nbLayers; layerI++) {
             weights[layerI] = toClone.weights[layerI].cp();
             weights[layerI].randomize(-randomMagnitude, randomMagnitude);
+            biases[layerI] = toClone.biases[layerI].cp();
+            biases[layerI].randomize(-randomMagnitude, randomMagnitude);
+            if (toClone.factors[layerI] != null) {
+                factors[layerI] = toClone.factors[layerI].cp();
+                factors[layerI].randomize(-randomMagnitude, randomMagnitude);
+            }
         }
     }
 
 
     /****************************************************************
      * Copy constructor with an amount of randomization, using the
-     * random of a Random object
+     * random of a generator
      * @param cloned The CesureGate object to clone
-     * @param rand The Random object
+     * @param rand The generator
      * @param magnitude The weights random changes magnitude
      ****************************************************************/
-    public CesureGate(CesureGate cloned, Random rand, double magnitude) {
+    public CesureGate(CesureGate cloned, RandomGenerator rand, double magnitude) {
         inputDimension = cloned.inputDimension;
         outputDimension = cloned.outputDimension;
         nbLayers = cloned.nbLayers;
 
         weights = new Matrix[nbLayers];
+        biases = new Matrix[nbLayers];
+        factors = new Matrix[nbLayers];
 
         activation = cloned.activation.clone();
 
         for (int layerI=0; layerI<nbLayers; layerI++) {
             weights[layerI] = cloned.weights[layerI].cp();
             weights[layerI].randomize(rand, -magnitude, magnitude);
+            biases[layerI] = cloned.biases[layerI].cp();
+            biases[layerI].randomize(rand, -magnitude, magnitude);
+            if (cloned.factors[layerI] != null) {
+                factors[layerI] = cloned.factors[layerI].cp();
+                factors[layerI].randomize(rand, -magnitude, magnitude);
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Save the layers in their row-major layout : the transposed
+     * weights only live in memory
+     ****************************************************************/
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        final Matrix[] savedWeights = new Matrix[nbLayers];
+        final Matrix[] savedFactors = new Matrix[nbLayers];
+        for (int layerI=0; layerI<nbLayers; layerI++) {
+            savedWeights[layerI] = getLayer(layerI);
+            if (factors[layerI] != null) {
+                savedFactors[layerI] = Matrix_transpose(factors[layerI]);
+            }
         }
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("inputDimension", inputDimension);
+        fields.put("outputDimension", outputDimension);
+        fields.put("nbLayers", nbLayers);
+        fields.put("weights", savedWeights);
+        fields.put("factors", savedFactors);
+        fields.put("activation", activation);
+        out.writeFields();
     }
 
+    /****************************************************************
+     * Load the layers saved by writeObject() and transpose them
+     * A gate saved before the low-rank layers has no factors : all
+     * its layers are full-rank
+     ****************************************************************/
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        inputDimension = fields.get("inputDimension", 0);
+        outputDimension = fields.get("outputDimension", 0);
+        nbLayers = fields.get("nbLayers", 0);
+        activation = (ActivationFunction) fields.get("activation", null);
+        final Matrix[] savedWeights = (Matrix[]) fields.get("weights", null);
+        final Matrix[] savedFactors = (Matrix[]) fields.get("factors", null);
 
+        weights = new Matrix[nbLayers];
+        biases = new Matrix[nbLayers];
+        factors = new Matrix[nbLayers];
+        for (int layerI=0; layerI<nbLayers; layerI++) {
+            final Matrix saved = savedWeights[layerI];
+            weights[layerI] = Matrix_transpose(saved.view(0, 0, saved.nbRows-1, saved.nbColumns));
+            biases[layerI] = saved.view(saved.nbRows-1, 0, 1, saved.nbColumns).cp();
+            if (savedFactors != null && savedFactors[layerI] != null) {
+                factors[layerI] = Matrix_transpose(savedFactors[layerI]);
+            }
+        }
+    }
 
+    /****************************************************************
+     * Return the weights of a layer in their row-major layout : one
+     * row per input of the layer, or per rank of a low-rank layer,
+     * and the bias as the last row
+     * @param layerI The layer
+     * @return A new matrix
+     ****************************************************************/
+    private Matrix getLayer(int layerI) {
+        final Matrix weight = weights[layerI];
+        final Matrix layer = new Matrix(weight.nbColumns+1, weight.nbRows);
+        Matrix_transpose(weight, layer.view(0, 0, weight.nbColumns, weight.nbRows));
+        biases[layerI].cp(layer.view(weight.nbColumns, 0, 1, weight.nbRows));
+        return layer;
+    }
 
     /****************************************************************
      * Initialize weights using XAVIER's initialization
      ****************************************************************/
-    private void weightInit_XAVIER(Random rand) {
-        for (Matrix weight : weights) {
-            double stdDeviation = 2.0 / weight.nbRows;
-            for (int row=0; row<weight.nbRows; row++) {
-                for (int col=0; col<weight.nbColumns; col++) {
-                    weight.array[row][col] = rand.nextGaussian() * stdDeviation;
-                }
+    private void weightInit_XAVIER(RandomGenerator rand) {
+        for (int i=0; i<nbLayers; i++) {
+            double stdDeviation = 2.0 / (weights[i].nbColumns+1); // +1 for bias
+            weights[i].setGaussian(rand, stdDeviation);
+            if (factors[i] == null) {
+                biases[i].setGaussian(rand, stdDeviation);
+            } else {
+                // Each element of the factors' product sums rank products : it gets the deviation
+                // of a full-rank layer's weights, like the bias
+                final double fullRankDeviation = 2.0 / (factors[i].nbColumns+1);
+                biases[i].setGaussian(rand, fullRankDeviation);
+                factors[i].setGaussian(rand, fullRankDeviation / (Math.sqrt(factors[i].nbRows) * stdDeviation));
             }
         }
     }
@@ -143,6 +303,14 @@ public class CesureGate implements Serializable {
         for (Matrix weight : weights) {
             weight.setRandom(-1, 1);
         }
+        for (Matrix bias : biases) {
+            bias.setRandom(-1, 1);
+        }
+        for (Matrix factor : factors) {
+            if (factor != null) {
+                factor.setRandom(-1, 1);
+            }
+        }
     }
 
 
@@ -156,14 +324,358 @@ public class CesureGate implements Serializable {
             throw new NeuralNetworkError("FeedforwardLayer.getOutput(Matrix) - "+input.nbRows+" - "+input.nbColumns
                     +" - "+inputDimension+" - "+outputDimension);
         }
+        return compute(new CompositeRowMatrix(input));
+    }
 
-        Matrix hidden = Matrix_concatenateRowMatrix(input, inputBias);
-        for (int i=0; i<nbLayers-1; i++) {
-            hidden = activation.activate( Matrix_mDot(hidden, weights[i]) );
-            hidden = Matrix_concatenateRowMatrix(hidden, inputBias);
+    /****************************************************************
+     * Compute an input made of several row matrices, without
+     * concatenating them
+     * @param input : The input to compute
+     * @return The computed output
+     ****************************************************************/
+    public Matrix compute(CompositeRowMatrix input) {
+        return compute(input, new Matrix(1, outputDimension));
+    }
+
+    /****************************************************************
+     * Compute an input into a caller-owned output : the hidden
+     * layers are scratch matrices of the thread's MatrixArena
+     * @param input : The input to compute
+     * @param result : The output row matrix
+     * @return result
+     ****************************************************************/
+    public Matrix compute(CompositeRowMatrix input, Matrix result) {
+        if (input.nbColumns != inputDimension || !result.isRowMatrix() || result.nbColumns != outputDimension) {
+            throw new NeuralNetworkError("CesureGate.compute(CompositeRowMatrix,Matrix) - "+input.nbColumns
+                    +" - "+result.nbRows+" - "+result.nbColumns+" - "+inputDimension+" - "+outputDimension);
+        }
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final Matrix hidden = nbLayers == 1 ? result : arena.rowMatrix(biases[0].nbColumns);
+            if (factors[0] == null) {
+                activation.activateAffineTransposed(input, weights[0], biases[0], hidden);
+            } else {
+                final Matrix projection = arena.rowMatrix(factors[0].nbRows);
+                MatrixKernels.mDotTranspose(input, factors[0], projection);
+                activation.activateAffineTransposed(projection, weights[0], biases[0], hidden);
+            }
+            if (nbLayers > 1) {
+                computeLayers(hidden, result, arena);
+            }
+            return result;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    /****************************************************************
+     * Compute an input made of dense row matrices followed by a
+     * sparse one, like a played chord : the first layer only reads
+     * the weight rows of the sparse segment's non-zero elements
+     * @param input : The dense start of the input
+     * @param sparseInput : The end of the input
+     * @param result : The output row matrix
+     * @return result
+     ****************************************************************/
+    public Matrix compute(CompositeRowMatrix input, SparseRowMatrix sparseInput, Matrix result) {
+        if (input.nbColumns + sparseInput.nbColumns != inputDimension || !result.isRowMatrix() || result.nbColumns != outputDimension) {
+            throw new NeuralNetworkError("CesureGate.compute(CompositeRowMatrix,SparseRowMatrix,Matrix) - "+input.nbColumns
+                    +" - "+sparseInput.nbColumns+" - "+result.nbRows+" - "+result.nbColumns+" - "+inputDimension+" - "+outputDimension);
+        }
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final Matrix hidden = nbLayers == 1 ? result : arena.rowMatrix(biases[0].nbColumns);
+            // The dense segments only cover the first input.nbColumns columns of the transposed weights,
+            // the sparse one adds the row-major rows of its non-zero elements
+            final Matrix sparseRows = getSparseRows(sparseInput.nbColumns);
+            if (factors[0] == null) {
+                MatrixKernels.affineTransposed(input, weights[0], biases[0], hidden);
+                MatrixKernels.accumulateRows(sparseInput, sparseRows, 0, hidden);
+                activation.activate(hidden, hidden);
+            } else {
+                final Matrix projection = arena.rowMatrix(factors[0].nbRows);
+                MatrixKernels.mDotTranspose(input, factors[0], projection);
+                MatrixKernels.accumulateRows(sparseInput, sparseRows, 0, projection);
+                activation.activateAffineTransposed(projection, weights[0], biases[0], hidden);
+            }
+            if (nbLayers > 1) {
+                computeLayers(hidden, result, arena);
+            }
+            return result;
+        } finally {
+            arena.reset(mark);
         }
-        Matrix output = activation.activate( Matrix_mDot(hidden, weights[nbLayers-1]) );
-        return output;
+    }
+
+    /****************************************************************
+     * Fold a constant start of the inputs, like the infos of a
+     * music, into the first product of compute() : computeFolded()
+     * then only reads the rest of the inputs
+     * @param constantInput : The first columns of the inputs
+     * @param result : The folded start, a row matrix of
+     *                 getFoldedDimension() columns
+     * @return result
+     ****************************************************************/
+    public Matrix foldInput(Matrix constantInput, Matrix result) {
+        if (!constantInput.isRowMatrix() || constantInput.nbColumns > inputDimension
+                || !result.isRowMatrix() || result.nbColumns != getFoldedDimension()) {
+            throw new NeuralNetworkError("CesureGate.foldInput(Matrix,Matrix) - "+constantInput.nbRows+" - "+constantInput.nbColumns
+                    +" - "+result.nbRows+" - "+result.nbColumns+" - "+inputDimension+" - "+getFoldedDimension());
+        }
+        if (factors[0] == null) {
+            MatrixKernels.affineTransposed(constantInput, weights[0], biases[0], result);
+        } else {
+            MatrixKernels.mDotTranspose(constantInput, factors[0], result);
+        }
+        return result;
+    }
+
+    public int getFoldedDimension() {
+        return getFirstProduct().nbRows;
+    }
+
+    /****************************************************************
+     * Compute an input whose start was folded by foldInput()
+     * @param folded : The folded start of the input
+     * @param input : The rest of the input
+     * @param result : The output row matrix
+     * @return result
+     ****************************************************************/
+    public Matrix computeFolded(Matrix folded, CompositeRowMatrix input, Matrix result) {
+        if (!folded.isRowMatrix() || folded.nbColumns != getFoldedDimension() || input.nbColumns > inputDimension
+                || !result.isRowMatrix() || result.nbColumns != outputDimension) {
+            throw new NeuralNetworkError("CesureGate.computeFolded(Matrix,CompositeRowMatrix,Matrix) - "+folded.nbColumns
+                    +" - "+input.nbColumns+" - "+result.nbColumns+" - "+inputDimension+" - "+outputDimension);
+        }
+        return computeFrom(folded, input, null, result);
+    }
+
+    /****************************************************************
+     * Compute an input whose start was folded by foldInput(), and
+     * whose end is sparse like in compute(CompositeRowMatrix,
+     * SparseRowMatrix,Matrix)
+     * @param folded : The folded start of the input
+     * @param input : The dense middle of the input
+     * @param sparseInput : The end of the input
+     * @param result : The output row matrix
+     * @return result
+     ****************************************************************/
+    public Matrix computeFolded(Matrix folded, CompositeRowMatrix input, SparseRowMatrix sparseInput, Matrix result) {
+        if (!folded.isRowMatrix() || folded.nbColumns != getFoldedDimension() || input.nbColumns + sparseInput.nbColumns > inputDimension
+                || !result.isRowMatrix() || result.nbColumns != outputDimension) {
+            throw new NeuralNetworkError("CesureGate.computeFolded(Matrix,CompositeRowMatrix,SparseRowMatrix,Matrix) - "+folded.nbColumns
+                    +" - "+input.nbColumns+" - "+sparseInput.nbColumns+" - "+result.nbColumns+" - "+inputDimension+" - "+outputDimension);
+        }
+        return computeFrom(folded, input, sparseInput, result);
+    }
+
+    // The input ends the columns of the first layer, followed by sparseInput when it isn't null
+    private Matrix computeFrom(Matrix folded, CompositeRowMatrix input, SparseRowMatrix sparseInput, Matrix result) {
+        final int firstColumn = inputDimension - input.nbColumns - (sparseInput == null ? 0 : sparseInput.nbColumns);
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final Matrix product = arena.rowMatrix(folded.nbColumns);
+            MatrixKernels.affineTransposed(input, getFirstProduct(), firstColumn, folded, product);
+            if (sparseInput != null) {
+                MatrixKernels.accumulateRows(sparseInput, getSparseRows(sparseInput.nbColumns), 0, product);
+            }
+            computeFromFirstProduct(product, result);
+            return result;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    /****************************************************************
+     * The first product of compute(), stacked by FusedCesureGates :
+     * the transposed weights of the first layer, or the transposed
+     * factor of a low-rank first layer
+     ****************************************************************/
+    Matrix getFirstProduct() {
+        return factors[0] == null ? weights[0] : factors[0];
+    }
+
+    // The sparse end of the inputs is always their last nbColumns columns
+    private Matrix getSparseRows(int nbColumns) {
+        Matrix sparseRows = this.sparseRows;
+        if (sparseRows == null || sparseRows.nbRows != nbColumns) {
+            final Matrix firstProduct = getFirstProduct();
+            sparseRows = Matrix_transpose(firstProduct.view(0, inputDimension-nbColumns, firstProduct.nbRows, nbColumns));
+            this.sparseRows = sparseRows;
+        }
+        return sparseRows;
+    }
+
+    // The bias added to the first product, null for a low-rank first layer whose bias comes after its factor
+    Matrix getFirstBias() {
+        return factors[0] == null ? biases[0] : null;
+    }
+
+    /****************************************************************
+     * Finish compute() from the first product of the input, with
+     * getFirstBias() added, computed by FusedCesureGates
+     * @param product : The first product, may be overwritten
+     * @param result : The output row matrix
+     * @return result
+     ****************************************************************/
+    Matrix computeFromFirstProduct(Matrix product, Matrix result) {
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final Matrix hidden = nbLayers == 1 ? result : arena.rowMatrix(biases[0].nbColumns);
+            if (factors[0] == null) {
+                activation.activate(product, hidden);
+            } else {
+                activation.activateAffineTransposed(product, weights[0], biases[0], hidden);
+            }
+            if (nbLayers > 1) {
+                computeLayers(hidden, result, arena);
+            }
+            return result;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    // Compute the layers after the first one, from its output hidden
+    private void computeLayers(Matrix hidden, Matrix result, MatrixArena arena) {
+        for (int i=1; i<nbLayers-1; i++) {
+            hidden = computeLayer(i, hidden, arena.rowMatrix(biases[i].nbColumns), arena);
+        }
+        computeLayer(nbLayers-1, hidden, result, arena);
+    }
+
+    // Compute the layer layerI, projecting input on the factor of a low-rank layer first
+    private Matrix computeLayer(int layerI, Matrix input, Matrix result, MatrixArena arena) {
+        if (factors[layerI] != null) {
+            input = Matrix_mDotTranspose(input, factors[layerI], arena.rowMatrix(factors[layerI].nbRows));
+        }
+        return activation.activateAffineTransposed(input, weights[layerI], biases[layerI], result);
+    }
+
+    /****************************************************************
+     * Compute a batch of inputs, one per row : each layer is one
+     * matrix product for the whole batch, on row-major copies of the
+     * weights, instead of one row vector product per input
+     * The hidden layers are scratch matrices of the thread's
+     * MatrixArena
+     * @param inputs : The inputs to compute, one per row
+     * @param results : The outputs, one per row
+     * @return results
+     ****************************************************************/
+    public Matrix computeBatch(Matrix inputs, Matrix results) {
+        if (inputs.nbColumns != inputDimension || results.nbRows != inputs.nbRows || results.nbColumns != outputDimension) {
+            throw new NeuralNetworkError("CesureGate.computeBatch(Matrix,Matrix) - "+inputs.nbRows+" - "+inputs.nbColumns
+                    +" - "+results.nbRows+" - "+results.nbColumns+" - "+inputDimension+" - "+outputDimension);
+        }
+        final Matrix[][] rowMajorLayers = getRowMajorLayers();
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            Matrix hidden = inputs;
+            for (int i=0; i<nbLayers; i++) {
+                final Matrix layerResult = i == nbLayers-1 ? results : arena.matrix(inputs.nbRows, biases[i].nbColumns);
+                hidden = computeBatchLayer(i, rowMajorLayers, hidden, layerResult, arena);
+            }
+            return results;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    // Batch version of computeLayer()
+    private Matrix computeBatchLayer(int layerI, Matrix[][] rowMajorLayers, Matrix inputs, Matrix results, MatrixArena arena) {
+        final Matrix factor = rowMajorLayers[1][layerI];
+        if (factor != null) {
+            inputs = Matrix_mDot(inputs, factor, arena.matrix(inputs.nbRows, factor.nbColumns));
+        }
+        return activation.activateAffine(inputs, rowMajorLayers[0][layerI], biases[layerI], results);
+    }
+
+    private Matrix[][] getRowMajorLayers() {
+        Matrix[][] rowMajorLayers = this.rowMajorLayers;
+        if (rowMajorLayers == null) {
+            rowMajorLayers = new Matrix[2][nbLayers];
+            for (int i=0; i<nbLayers; i++) {
+                rowMajorLayers[0][i] = Matrix_transpose(weights[i]);
+                if (factors[i] != null) {
+                    rowMajorLayers[1][i] = Matrix_transpose(factors[i]);
+                }
+            }
+            this.rowMajorLayers = rowMajorLayers;
+        }
+        return rowMajorLayers;
+    }
+
+    /****************************************************************
+     * Compute an input in single precision
+     * @param input : The input to compute
+     * @return The computed output
+     ****************************************************************/
+    public FloatMatrix compute(FloatMatrix input) {
+        return compute(input, new FloatMatrix(1, outputDimension));
+    }
+
+    /****************************************************************
+     * Compute an input in single precision into a caller-owned
+     * output : the hidden layers are scratch matrices of the
+     * thread's MatrixArena
+     * @param input : The input to compute
+     * @param result : The output row matrix
+     * @return result
+     ****************************************************************/
+    public FloatMatrix compute(FloatMatrix input, FloatMatrix result) {
+        if (!input.isRowMatrix() || input.nbColumns != inputDimension || !result.isRowMatrix() || result.nbColumns != outputDimension) {
+            throw new NeuralNetworkError("CesureGate.compute(FloatMatrix,FloatMatrix) - "+input.nbRows+" - "+input.nbColumns
+                    +" - "+result.nbRows+" - "+result.nbColumns+" - "+inputDimension+" - "+outputDimension);
+        }
+        final FloatMatrix[][] floatLayers = getFloatLayers();
+        final FloatMatrix[] floatWeights = floatLayers[0];
+        final FloatMatrix[] floatBiases = floatLayers[1];
+        final FloatMatrix[] floatFactors = floatLayers[2];
+
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            FloatMatrix hidden = input;
+            for (int i=0; i<nbLayers; i++) {
+                if (floatFactors[i] != null) {
+                    hidden = FloatMatrix_mDot(hidden, floatFactors[i], arena.floatRowMatrix(floatFactors[i].nbColumns));
+                }
+                hidden = activation.activateAffine(hidden, floatWeights[i], floatBiases[i],
+                        i == nbLayers-1 ? result : arena.floatRowMatrix(floatBiases[i].nbColumns));
+            }
+            return result;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    private FloatMatrix[][] getFloatLayers() {
+        FloatMatrix[][] floatLayers = this.floatLayers;
+        if (floatLayers == null) {
+            floatLayers = new FloatMatrix[3][nbLayers];
+            for (int i=0; i<nbLayers; i++) {
+                floatLayers[0][i] = new FloatMatrix(Matrix_transpose(weights[i]));
+                floatLayers[1][i] = new FloatMatrix(biases[i]);
+                if (factors[i] != null) {
+                    floatLayers[2][i] = new FloatMatrix(Matrix_transpose(factors[i]));
+                }
+            }
+            this.floatLayers = floatLayers;
+        }
+        return floatLayers;
+    }
+
+    public int getInputDimension() {
+        return inputDimension;
+    }
+
+    public int getOutputDimension() {
+        return outputDimension;
     }
 
     public CesureGateComputeInfos computeAndGetInfos(Matrix input) {
@@ -178,17 +690,23 @@ public class CesureGate implements Serializable {
         hiddens_unact[0] = input;
         hiddens[0] = input;
         for (int i=0; i<nbLayers-1; i++) {
-            final Matrix in = Matrix_concatenateRowMatrix(hiddens[i], inputBias);
-            hiddens_unact[i+1] = Matrix_mDot(in, weights[i]);
-            hiddens[i+1] = activation.activate(hiddens_unact[i+1]);
+            final int hiddenDimension = biases[i].nbColumns;
+            hiddens_unact[i+1] = new Matrix(1, hiddenDimension);
+            hiddens[i+1] = activation.activate(Matrix_affineTransposed(project(i, hiddens[i]), weights[i], biases[i], hiddens_unact[i+1]),
+                    new Matrix(1, hiddenDimension));
         }
-        final Matrix in = Matrix_concatenateRowMatrix(hiddens[nbLayers-1], inputBias);
-        final Matrix output_unact = Matrix_mDot(in, weights[nbLayers-1]);
-        final Matrix output = activation.activate(output_unact);
+        final Matrix output_unact = new Matrix(1, outputDimension);
+        final Matrix output = activation.activate(Matrix_affineTransposed(project(nbLayers-1, hiddens[nbLayers-1]), weights[nbLayers-1],
+                biases[nbLayers-1], output_unact), new Matrix(1, outputDimension));
 
         return new CesureGateComputeInfos(hiddens_unact, hiddens, output_unact, output);
     }
 
+    // The input of layerI's weights : input itself, or its product with the factor of a low-rank layer
+    private Matrix project(int layerI, Matrix input) {
+        return factors[layerI] == null ? input : Matrix_mDotTranspose(input, factors[layerI]);
+    }
+
 
 
     /****************************************************************
@@ -200,6 +718,14 @@ public class CesureGate implements Serializable {
         for (Matrix weight : weights) {
             count += weight.nbRows * weight.nbColumns;
         }
+        for (Matrix bias : biases) {
+            count += bias.nbColumns;
+        }
+        for (Matrix factor : factors) {
+            if (factor != null) {
+                count += factor.nbRows * factor.nbColumns;
+            }
+        }
         return count;
     }
 
@@ -210,7 +736,10 @@ public class CesureGate implements Serializable {
     public void print() {
         for (int i=0; i<nbLayers; i++) {
             System.out.println("Layer #"+i+" :");
-            weights[i].print();
+            if (factors[i] != null) {
+                Matrix_transpose(factors[i]).print();
+            }
+            getLayer(i).print();
         }
     }
 
@@ -0,0 +1,511 @@
+package cesure.network;
+
+import cesure.network.activation.ActivationSigmoid;
+import cesure.network.activation.ActivationTanh;
+import cesure.utils.CompositeRowMatrix;
+import cesure.utils.FloatMatrix;
+import cesure.utils.Matrix;
+import cesure.utils.MatrixArena;
+import cesure.utils.SparseRowMatrix;
+
+import java.io.Serializable;
+import java.util.random.RandomGenerator;
+
+import static cesure.network.Cesure.CONTEXTGATES_INPUT_SIZE;
+import static cesure.network.Cesure.CONTEXTGATES_OUTPUT_SIZE;
+import static cesure.network.Cesure.CONTEXT_DIMENSION;
+import static cesure.network.Cesure.INFOS_DIMENSION;
+import static cesure.network.Cesure.OUTPUTGATE_INPUT_SIZE;
+import static cesure.network.Cesure.OUTPUTGATE_OUTPUT_SIZE;
+import static cesure.utils.FloatMatrixMath.FloatMatrix_concatenateRowMatrix;
+import static cesure.utils.FloatMatrixMath.FloatMatrix_meanDifference;
+import static cesure.utils.MatrixMath.Matrix_concatenateRowMatrix;
+import static cesure.utils.MatrixMath.Matrix_meanDifference;
+import static cesure.utils.MatrixMath.Matrix_pMult;
+
+/****************************************************************
+ * The weights of a Cesure network : its four gates, which never
+ * change once built
+ * Every computation works on a RecurrentState created by
+ * newState(), one per music, so threads can share one model as
+ * long as each one uses its own states
+ ****************************************************************/
+public class CesureModel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final CesureGate outputGate;
+    final CesureGate forgetGate;
+    final CesureGate memoryGate;
+    final CesureGate memoryInputGate;
+
+    // The forget, memory and memoryInput gates computed together on their shared input, built on
+    // the first use of a state with fused context gates
+    private transient volatile FusedCesureGates contextGates;
+
+
+    /****************************************************************
+     * Default constructor
+     ****************************************************************/
+    public CesureModel() {
+        this(0);
+    }
+
+    /****************************************************************
+     * Constructor of a model whose gates have low-rank layers
+     * @param rank The rank of the gates' factorized layers, 0 for
+     *             full-rank layers
+     ****************************************************************/
+    public CesureModel(int rank) {
+        outputGate = CesureGate.newAutoCesureGate2(OUTPUTGATE_INPUT_SIZE, OUTPUTGATE_OUTPUT_SIZE, ActivationSigmoid.INSTANCE, 4, rank);
+        forgetGate = CesureGate.newAutoCesureGate2(CONTEXTGATES_INPUT_SIZE, CONTEXTGATES_OUTPUT_SIZE, ActivationSigmoid.INSTANCE, 4, rank);
+        memoryGate = CesureGate.newAutoCesureGate2(CONTEXTGATES_INPUT_SIZE, CONTEXTGATES_OUTPUT_SIZE, ActivationSigmoid.INSTANCE, 4, rank);
+        memoryInputGate = CesureGate.newAutoCesureGate2(CONTEXTGATES_INPUT_SIZE, CONTEXTGATES_OUTPUT_SIZE, ActivationTanh.INSTANCE, 4, rank);
+    }
+
+    // A model on existing gates, like the ones of a network saved before the models
+    CesureModel(CesureGate outputGate, CesureGate forgetGate, CesureGate memoryGate, CesureGate memoryInputGate) {
+        this.outputGate = outputGate;
+        this.forgetGate = forgetGate;
+        this.memoryGate = memoryGate;
+        this.memoryInputGate = memoryInputGate;
+    }
+
+    /****************************************************************
+     * Copy constructor with an amount of randomization, using the
+     * random of a generator
+     * @param cloned The CesureModel object to clone
+     * @param rand The generator
+     * @param magnitude The weights random changes magnitude
+     ****************************************************************/
+    public CesureModel(CesureModel cloned, RandomGenerator rand, double magnitude) {
+        outputGate = new CesureGate(cloned.outputGate, rand, magnitude);
+        forgetGate = new CesureGate(cloned.forgetGate, rand, magnitude);
+        memoryGate = new CesureGate(cloned.memoryGate, rand, magnitude);
+        memoryInputGate = new CesureGate(cloned.memoryInputGate, rand, magnitude);
+    }
+
+    /****************************************************************
+     * Create a state for a new music, with zero infos and context
+     * @return The new state
+     ****************************************************************/
+    public RecurrentState newState() {
+        return new RecurrentState(this);
+    }
+
+    // Built at most once per thread racing on the first use, all the copies being equal
+    FusedCesureGates getContextGates() {
+        FusedCesureGates contextGates = this.contextGates;
+        if (contextGates == null) {
+            contextGates = new FusedCesureGates(forgetGate, memoryGate, memoryInputGate);
+            this.contextGates = contextGates;
+        }
+        return contextGates;
+    }
+
+    private void checkState(RecurrentState state, String method) {
+        if (state.model != this) {
+            throw new NeuralNetworkError("CesureModel."+method+" : the state belongs to another model");
+        }
+    }
+
+
+
+    /****************************************************************
+     * Compute the next music's note
+     * Will change the state's context according to the outputed note
+     * @param state The state of the music
+     * @return The computed note
+     ****************************************************************/
+    public Matrix computeNextNote(RecurrentState state) {
+        return computeNextNote(state, new Matrix(1, OUTPUTGATE_OUTPUT_SIZE));
+    }
+
+    /****************************************************************
+     * Compute the next music's note into a caller-owned row matrix
+     * Will change the state's context according to the outputed note
+     * @param state The state of the music
+     * @param result The row matrix receiving the note
+     * @return result
+     ****************************************************************/
+    public Matrix computeNextNote(RecurrentState state, Matrix result) {
+        return computeNextNoteView(state).cp(result);
+    }
+
+    /****************************************************************
+     * Compute the next music's note without allocating anything
+     * Will change the state's context according to the outputed note
+     * @param state The state of the music
+     * @return A view on the state's note workspace : the next step
+     *         overwrites it, copy it to keep it
+     ****************************************************************/
+    public Matrix computeNextNoteView(RecurrentState state) {
+        checkState(state, "computeNextNoteView(RecurrentState)");
+
+        // Comppute output
+        outputGate.computeFolded(state.foldedInfos[0], state.outputGateInput, state.note);
+
+        // Compute context update
+        updateContext(state, state.contextInput, null);
+
+        return state.note;
+    }
+
+    public CesureComputeInfos computeNextNoteAndGetInfos(RecurrentState state) {
+        checkState(state, "computeNextNoteAndGetInfos(RecurrentState)");
+        final Matrix context = state.context;
+
+        // Comppute output
+        final Matrix infosAndContext = Matrix_concatenateRowMatrix(state.infos, context);
+        final CesureGateComputeInfos outputGateInfos = outputGate.computeAndGetInfos(infosAndContext);
+
+        // Compute context update
+        final Matrix contextInput = Matrix_concatenateRowMatrix(infosAndContext, outputGateInfos.output);
+        final CesureGateComputeInfos forgetGateInfos = forgetGate.computeAndGetInfos(contextInput);
+        context.pMult(forgetGateInfos.output);
+        final CesureGateComputeInfos memoryGateInfos = memoryGate.computeAndGetInfos(contextInput);
+        final CesureGateComputeInfos memoryInputGateInfos = memoryInputGate.computeAndGetInfos(contextInput);
+        context.add( Matrix_pMult(memoryGateInfos.output, memoryInputGateInfos.output) );
+
+        return new CesureComputeInfos(outputGateInfos,forgetGateInfos,memoryGateInfos,memoryInputGateInfos);
+    }
+
+
+    /****************************************************************
+     * Input the next music's note :
+     * Will change the state's context according to the input note
+     * as if it was outputed by a computeNextNote() call
+     * @param state The state of the music
+     * @param note The note to input
+     ****************************************************************/
+    public void inputNextNote(RecurrentState state, Matrix note) {
+        checkState(state, "inputNextNote(RecurrentState,Matrix)");
+        note.cp(state.note);
+        updateContext(state, state.contextInput, null);
+    }
+
+    /****************************************************************
+     * Input the next music's note, given by its played notes only :
+     * the context gates skip the weights of the silent ones
+     * @param state The state of the music
+     * @param note The note to input
+     ****************************************************************/
+    public void inputNextNote(RecurrentState state, SparseRowMatrix note) {
+        checkState(state, "inputNextNote(RecurrentState,SparseRowMatrix)");
+        if (note.nbColumns != OUTPUTGATE_OUTPUT_SIZE) {
+            throw new NeuralNetworkError("CesureModel.inputNextNote(RecurrentState,SparseRowMatrix) - "+note.nbColumns);
+        }
+        updateContext(state, state.outputGateInput, note);
+    }
+
+    /****************************************************************
+     * context = context * forget + memory * memoryInput, with the
+     * gate outputs in scratch matrices of the thread's MatrixArena
+     * @param state The state whose context is updated
+     * @param contextInput The context gates input after the folded
+     *                     infos, it sees context so every gate is
+     *                     computed before changing it
+     * @param sparseInput The end of the input, or null
+     ****************************************************************/
+    private void updateContext(RecurrentState state, CompositeRowMatrix contextInput, SparseRowMatrix sparseInput) {
+        final Matrix context = state.context;
+        if (state.contextGatesWorkspace != null) {
+            final Matrix[] outputs = getContextGates().computeFolded(state.contextGatesFoldedInfos, contextInput, sparseInput,
+                    state.contextGatesWorkspace);
+            context.pMult(outputs[0]);
+            context.add(outputs[1].pMult(outputs[2]));
+            return;
+        }
+        final Matrix[] foldedInfos = state.foldedInfos;
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final Matrix forgetVect = computeGate(forgetGate, foldedInfos[1], contextInput, sparseInput, arena.rowMatrix(CONTEXTGATES_OUTPUT_SIZE));
+            final Matrix rememberVect = computeGate(memoryGate, foldedInfos[2], contextInput, sparseInput, arena.rowMatrix(CONTEXTGATES_OUTPUT_SIZE))
+                    .pMult(computeGate(memoryInputGate, foldedInfos[3], contextInput, sparseInput, arena.rowMatrix(CONTEXTGATES_OUTPUT_SIZE)));
+            context.pMult(forgetVect);
+            context.add(rememberVect);
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    private static Matrix computeGate(CesureGate gate, Matrix folded, CompositeRowMatrix input, SparseRowMatrix sparseInput, Matrix result) {
+        return sparseInput == null ? gate.computeFolded(folded, input, result) : gate.computeFolded(folded, input, sparseInput, result);
+    }
+
+
+    /****************************************************************
+     * Compute the next note of several musics in one call : their
+     * inputs are stacked one per row, so each gate layer is one
+     * matrix product for the whole batch
+     * Will change each state's context according to its note
+     * @param states The states of the musics, each one at most once
+     * @return The computed notes, one row per state
+     ****************************************************************/
+    public Matrix computeNextNotes(RecurrentState[] states) {
+        return computeNextNotes(states, new Matrix(states.length, OUTPUTGATE_OUTPUT_SIZE));
+    }
+
+    /****************************************************************
+     * Compute the next note of several musics into a caller-owned
+     * matrix
+     * @param states The states of the musics, each one at most once
+     * @param results The matrix receiving the notes, one row per
+     *                state
+     * @return results
+     ****************************************************************/
+    public Matrix computeNextNotes(RecurrentState[] states, Matrix results) {
+        if (results.nbRows != states.length || results.nbColumns != OUTPUTGATE_OUTPUT_SIZE) {
+            throw new NeuralNetworkError("CesureModel.computeNextNotes(RecurrentState[],Matrix) - "+states.length
+                    +" - "+results.nbRows+" - "+results.nbColumns);
+        }
+        stepBatch(states, results, true);
+        return results;
+    }
+
+    /****************************************************************
+     * Input the next note of several musics in one call, as if they
+     * were outputed by a computeNextNotes() call
+     * @param states The states of the musics, each one at most once
+     * @param notes The notes to input, one row per state
+     ****************************************************************/
+    public void inputNextNotes(RecurrentState[] states, Matrix notes) {
+        if (notes.nbRows != states.length || notes.nbColumns != OUTPUTGATE_OUTPUT_SIZE) {
+            throw new NeuralNetworkError("CesureModel.inputNextNotes(RecurrentState[],Matrix) - "+states.length
+                    +" - "+notes.nbRows+" - "+notes.nbColumns);
+        }
+        stepBatch(states, notes, false);
+    }
+
+    /****************************************************************
+     * One step of every state, on the rows [infos | context | note]
+     * of a scratch matrix : the output gate reads their start, the
+     * context gates the whole rows. The batch doesn't use the folded
+     * infos and fused gates of the states, its inputs being stacked
+     * already
+     * @param notes The notes to input, or the matrix receiving the
+     *              computed ones when compute is true
+     ****************************************************************/
+    private void stepBatch(RecurrentState[] states, Matrix notes, boolean compute) {
+        final int nbStates = states.length;
+        // A state twice in the batch would only get the context of one of its two updates
+        for (int i=0; i<nbStates; i++) {
+            checkState(states[i], "stepBatch(RecurrentState[],Matrix,boolean)");
+            for (int j=0; j<i; j++) {
+                if (states[j] == states[i]) {
+                    throw new NeuralNetworkError("CesureModel.stepBatch(RecurrentState[],Matrix,boolean) : the states "+j+" and "+i+" are the same");
+                }
+            }
+        }
+        if (nbStates == 0) {
+            return;
+        }
+
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final Matrix inputs = arena.matrix(nbStates, CONTEXTGATES_INPUT_SIZE);
+            for (int i=0; i<nbStates; i++) {
+                final RecurrentState state = states[i];
+                final int rowStart = inputs.offset + i*inputs.stride;
+                System.arraycopy(state.infos.array, state.infos.offset, inputs.array, rowStart, INFOS_DIMENSION);
+                System.arraycopy(state.context.array, state.context.offset, inputs.array, rowStart + INFOS_DIMENSION, CONTEXT_DIMENSION);
+            }
+            final Matrix contexts = inputs.view(0, INFOS_DIMENSION, nbStates, CONTEXT_DIMENSION);
+            final Matrix inputNotes = inputs.view(0, OUTPUTGATE_INPUT_SIZE, nbStates, OUTPUTGATE_OUTPUT_SIZE);
+
+            // Comppute output
+            if (compute) {
+                outputGate.computeBatch(inputs.view(0, 0, nbStates, OUTPUTGATE_INPUT_SIZE), notes);
+            }
+            notes.cp(inputNotes);
+
+            // Compute context update
+            final Matrix forgetVects = forgetGate.computeBatch(inputs, arena.matrix(nbStates, CONTEXTGATES_OUTPUT_SIZE));
+            final Matrix rememberVects = memoryGate.computeBatch(inputs, arena.matrix(nbStates, CONTEXTGATES_OUTPUT_SIZE))
+                    .pMult(memoryInputGate.computeBatch(inputs, arena.matrix(nbStates, CONTEXTGATES_OUTPUT_SIZE)));
+            contexts.pMult(forgetVects);
+            contexts.add(rememberVects);
+            for (int i=0; i<nbStates; i++) {
+                final Matrix context = states[i].context;
+                System.arraycopy(contexts.array, contexts.offset + i*contexts.stride, context.array, context.offset, CONTEXT_DIMENSION);
+            }
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+
+    /****************************************************************
+     * Single precision version of computeNextNote(), working on
+     * caller-owned infos and context vectors instead of a state
+     * @param infos The music infos vector
+     * @param context The context vector, will be updated
+     * @return The computed note
+     ****************************************************************/
+    public FloatMatrix computeNextNote(FloatMatrix infos, FloatMatrix context) {
+        return computeNextNote(infos, context, new FloatMatrix(1, OUTPUTGATE_OUTPUT_SIZE));
+    }
+
+    /****************************************************************
+     * Single precision version of computeNextNote(RecurrentState,
+     * Matrix), working on caller-owned infos and context vectors
+     * @param infos The music infos vector
+     * @param context The context vector, will be updated
+     * @param result The row matrix receiving the note
+     * @return result
+     ****************************************************************/
+    public FloatMatrix computeNextNote(FloatMatrix infos, FloatMatrix context, FloatMatrix result) {
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            // Compute output
+            final FloatMatrix infosAndContext = FloatMatrix_concatenateRowMatrix(infos, context,
+                    arena.floatRowMatrix(infos.nbColumns + context.nbColumns));
+            outputGate.compute(infosAndContext, result);
+
+            // Compute context update
+            updateContext(context, FloatMatrix_concatenateRowMatrix(infosAndContext, result,
+                    arena.floatRowMatrix(infosAndContext.nbColumns + result.nbColumns)));
+
+            return result;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    /****************************************************************
+     * Single precision version of inputNextNote(), working on
+     * caller-owned infos and context vectors instead of a state
+     * @param infos The music infos vector
+     * @param context The context vector, will be updated
+     * @param note The note to input
+     ****************************************************************/
+    public void inputNextNote(FloatMatrix infos, FloatMatrix context, FloatMatrix note) {
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final FloatMatrix infosAndContext = FloatMatrix_concatenateRowMatrix(infos, context,
+                    arena.floatRowMatrix(infos.nbColumns + context.nbColumns));
+            updateContext(context, FloatMatrix_concatenateRowMatrix(infosAndContext, note,
+                    arena.floatRowMatrix(infosAndContext.nbColumns + note.nbColumns)));
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+    // Single precision version of updateContext(RecurrentState,CompositeRowMatrix,SparseRowMatrix)
+    private void updateContext(FloatMatrix context, FloatMatrix contextInput) {
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final FloatMatrix forgetVect = forgetGate.compute(contextInput, arena.floatRowMatrix(CONTEXTGATES_OUTPUT_SIZE));
+            final FloatMatrix rememberVect = memoryGate.compute(contextInput, arena.floatRowMatrix(CONTEXTGATES_OUTPUT_SIZE))
+                    .pMult(memoryInputGate.compute(contextInput, arena.floatRowMatrix(CONTEXTGATES_OUTPUT_SIZE)));
+            context.pMult(forgetVect);
+            context.add(rememberVect);
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+
+
+    /****************************************************************
+     * Calculate the sum of the errors between this output and a
+     * CesureMusic object notes, on a new state
+     * @param music The CesureMusic object to compute on
+     * @param start The first note to start add errors at :
+     *              The "start" first notes' errors won't be added
+     *              to the sum
+     * @return The error sum
+     ****************************************************************/
+    public double calculateErrorSum(CesureMusic music, int start) {
+        return calculateErrorSum(newState(), music, start);
+    }
+
+    /****************************************************************
+     * Same as calculateErrorSum(CesureMusic,int), restarting a
+     * caller-owned state : reusing it allocates nothing
+     * @param state The state, started on the music
+     ****************************************************************/
+    public double calculateErrorSum(RecurrentState state, CesureMusic music, int start) {
+        Matrix[] chords = music.getChords();
+        SparseRowMatrix[] sparseChords = music.getSparseChords();
+        int nbChords = chords.length;
+
+        state.startNewMusic(music.getInfos());
+        double errorSum = 0;
+        for (int chordI=0; chordI<nbChords; chordI++) {
+            if (chordI<start) {
+                inputNextNote(state, sparseChords[chordI]);
+            } else {
+                errorSum += Math.abs(Matrix_meanDifference(chords[chordI], computeNextNoteView(state)));
+            }
+        }
+        return errorSum;
+    }
+
+    /****************************************************************
+     * Single precision version of calculateErrorSum()
+     * @param music The CesureMusic object to compute on
+     * @param start The first note to start add errors at
+     * @return The error sum
+     ****************************************************************/
+    public double calculateErrorSumFloat(CesureMusic music, int start) {
+        final FloatMatrix infos = music.getFloatInfos();
+        final FloatMatrix[] chords = music.getFloatChords();
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            final FloatMatrix context = arena.floatRowMatrix(CONTEXT_DIMENSION);
+            final FloatMatrix note = arena.floatRowMatrix(OUTPUTGATE_OUTPUT_SIZE);
+            context.setZero();
+
+            double errorSum = 0;
+            for (int chordI=0; chordI<chords.length; chordI++) {
+                if (chordI<start) {
+                    inputNextNote(infos, context, chords[chordI]);
+                } else {
+                    errorSum += Math.abs(FloatMatrix_meanDifference(chords[chordI], computeNextNote(infos, context, note)));
+                }
+            }
+            return errorSum;
+        } finally {
+            arena.reset(mark);
+        }
+    }
+
+
+
+    /****************************************************************
+     * Return the total number of neurons in this model
+     * @return The total number of neurons in this model
+     ****************************************************************/
+    public int getNbNeurons() {
+        int count = 0;
+        count += outputGate.getNbNeurons();
+        count += forgetGate.getNbNeurons();
+        count += memoryGate.getNbNeurons();
+        count += memoryInputGate.getNbNeurons();
+        return count;
+    }
+
+    /****************************************************************
+     * Print the gates
+     * @param name The name to print
+     ****************************************************************/
+    public void print(String name) {
+        System.out.println("::: Printing "+name+" :::");
+        System.out.println("- Output Gate");
+        outputGate.print();
+        System.out.println("- Forget Gate");
+        forgetGate.print();
+        System.out.println("- Input Gate");
+        memoryGate.print();
+        System.out.println("- Remember Gate");
+        memoryInputGate.print();
+    }
+
+}
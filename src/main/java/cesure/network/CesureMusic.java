@@ -1,7 +1,9 @@
 package cesure.network;
 
 import cesure.midi.MidiParser;
+import cesure.utils.FloatMatrix;
 import cesure.utils.Matrix;
+import cesure.utils.SparseRowMatrix;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,8 +13,14 @@ import static cesure.network.Cesure.INFOS_DIMENSION;
 
 public class CesureMusic {
 
-    public Matrix infos;
-    public Matrix[] chords;
+    private final Matrix infos;
+    private final Matrix[] chords;
+
+    // Single precision copies and played notes of each chord, built on first use : volatile as
+    // threads sharing a model can also share the musics it goes through
+    private volatile FloatMatrix floatInfos;
+    private volatile FloatMatrix[] floatChords;
+    private volatile SparseRowMatrix[] sparseChords;
 
     /****************************************************************
      * Default constructor
@@ -29,7 +37,71 @@ public class CesureMusic {
             }
         }
         this.infos = infos;
-        this.chords = chords;
+        this.chords = chords.clone();
+    }
+
+    public Matrix getInfos() {
+        return infos;
+    }
+
+    /****************************************************************
+     * Return the chords, which must not be changed except by
+     * normalize_OneNote() : getFloatChords() and getSparseChords()
+     * copy them on their first call
+     * @return The chords
+     ****************************************************************/
+    public Matrix[] getChords() {
+        return chords;
+    }
+
+
+    /****************************************************************
+     * Return a single precision copy of the infos vector
+     * @return The infos vector
+     ****************************************************************/
+    public FloatMatrix getFloatInfos() {
+        FloatMatrix floatInfos = this.floatInfos;
+        if (floatInfos == null) {
+            floatInfos = new FloatMatrix(infos);
+            this.floatInfos = floatInfos;
+        }
+        return floatInfos;
+    }
+
+    /****************************************************************
+     * Return single precision copies of the chords
+     * The copies are made on the first call : later changes of the
+     * chords, except by normalize_OneNote(), won't be seen
+     * @return The chords
+     ****************************************************************/
+    public FloatMatrix[] getFloatChords() {
+        FloatMatrix[] floatChords = this.floatChords;
+        if (floatChords == null) {
+            floatChords = new FloatMatrix[chords.length];
+            for (int i=0; i<chords.length; i++) {
+                floatChords[i] = new FloatMatrix(chords[i]);
+            }
+            this.floatChords = floatChords;
+        }
+        return floatChords;
+    }
+
+    /****************************************************************
+     * Return sparse copies of the chords, keeping their played notes
+     * only : a chord has a few of them out of CHORD_DIMENSION
+     * The copies are made on the first call, like getFloatChords()
+     * @return The chords
+     ****************************************************************/
+    public SparseRowMatrix[] getSparseChords() {
+        SparseRowMatrix[] sparseChords = this.sparseChords;
+        if (sparseChords == null) {
+            sparseChords = new SparseRowMatrix[chords.length];
+            for (int i=0; i<chords.length; i++) {
+                sparseChords[i] = new SparseRowMatrix(chords[i]);
+            }
+            this.sparseChords = sparseChords;
+        }
+        return sparseChords;
     }
 
 
@@ -42,13 +114,15 @@ public class CesureMusic {
         for (Matrix chord : chords) {
             int maxOutputI = 0;
             for (int i=1; i<chord.nbColumns; i++) {
-                if (chord.array[0][i] > chord.array[0][maxOutputI]) {
+                if (chord.get(0,i) > chord.get(0,maxOutputI)) {
                     maxOutputI = i;
                 }
             }
             chord.setZero();
-            chord.array[0][maxOutputI] = 1;
+            chord.set(0, maxOutputI, 1);
         }
+        floatChords = null;
+        sparseChords = null;
     }
 
 
@@ -4,8 +4,10 @@ package cesure.network;
 import cesure.network.NeuralNetworkError;
 import cesure.network.activation.ActivationFunction;
 import cesure.utils.Matrix;
+import cesure.utils.MatrixArena;
+import cesure.utils.RandomUtils;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 import static cesure.utils.MatrixMath.*;
 import static cesure.utils.MatrixMath.Matrix_mult;
@@ -24,6 +26,18 @@ public class FeedForwardNetworkV4 {
 
     private ActivationFunction activation;
 
+    // Training workspaces, allocated once and overwritten by each train_backpropagation() call
+    private Matrix[] hiddens_unact; // Unactivated, hiddens_unact[0] is unused
+    private Matrix[] hiddens_act_bias; // Activated, with bias
+    private Matrix[] hiddens_act; // Views on hiddens_act_bias without the bias
+    private Matrix output_unact;
+    private Matrix output_act;
+    private Matrix[] signalsError; // signalError[i] -> from layer i to layer i-1
+    private Matrix[] signalsDerivative;
+    private Matrix[] backErrors; // signalsError[i+1] propagated through weights[i+1], without the bias
+    private Matrix[] weightsDelta;
+    private Matrix[] weightsDeltaSum;
+
     public FeedForwardNetworkV4(int inputDimension, int outputDimension, int nbHiddenLayers, int hiddenDimension, ActivationFunction activation) {
         nbHiddenLayers = (nbHiddenLayers < 0) ? 0 : nbHiddenLayers;
 
@@ -51,21 +65,54 @@ public class FeedForwardNetworkV4 {
             lastWeightsChange[nbLayers-1] = new Matrix(hiddenDimension+1, outputDimension); // +1 for bias
         }
 
-        weightInit_XAVIER(new Random());
+        weightInit_XAVIER(RandomUtils.current());
         for (Matrix lastWeightChange : lastWeightsChange) {
             lastWeightChange.setZero();
         }
+
+        initWorkspaces();
+    }
+
+
+    private void initWorkspaces() {
+        hiddens_unact = new Matrix[nbLayers];
+        hiddens_act_bias = new Matrix[nbLayers];
+        hiddens_act = new Matrix[nbLayers];
+        signalsError = new Matrix[nbLayers];
+        signalsDerivative = new Matrix[nbLayers];
+        backErrors = new Matrix[nbLayers];
+        weightsDelta = new Matrix[nbLayers];
+        weightsDeltaSum = new Matrix[nbLayers];
+
+        for (int layerI=0; layerI<nbLayers; layerI++) {
+            final int layerInputDimension = weights[layerI].nbRows - 1;
+            final int layerOutputDimension = weights[layerI].nbColumns;
+
+            if (layerI > 0) {
+                hiddens_unact[layerI] = new Matrix(1, layerInputDimension);
+            }
+            hiddens_act_bias[layerI] = new Matrix(1, layerInputDimension+1);
+            hiddens_act_bias[layerI].set(layerInputDimension, 1);
+            hiddens_act[layerI] = hiddens_act_bias[layerI].view(0, 0, 1, layerInputDimension);
+
+            signalsError[layerI] = new Matrix(1, layerOutputDimension);
+            signalsDerivative[layerI] = new Matrix(1, layerOutputDimension);
+            if (layerI < nbLayers-1) {
+                backErrors[layerI] = new Matrix(1, layerOutputDimension);
+            }
+            weightsDelta[layerI] = new Matrix(layerInputDimension+1, layerOutputDimension);
+            weightsDeltaSum[layerI] = new Matrix(layerInputDimension+1, layerOutputDimension);
+        }
+
+        output_unact = new Matrix(1, outputDimension);
+        output_act = new Matrix(1, outputDimension);
     }
 
 
-    private void weightInit_XAVIER(Random rand) {
+    private void weightInit_XAVIER(RandomGenerator rand) {
         for (Matrix weight : weights) {
             double stdDeviation = 2.0 / weight.nbRows;
-            for (int row=0; row<weight.nbRows; row++) {
-                for (int col=0; col<weight.nbColumns; col++) {
-                    weight.array[row][col] = rand.nextGaussian() * stdDeviation;
-                }
-            }
+            weight.setGaussian(rand, stdDeviation);
         }
     }
 
@@ -82,13 +129,27 @@ public class FeedForwardNetworkV4 {
                     +" - "+inputDimension+" - "+outputDimension);
         }
 
-        Matrix hidden = Matrix_concatenateRowMatrix(input, inputBias);
-        for (int i=0; i<nbLayers-1; i++) {
-            hidden = activation.activate( Matrix_mDot(hidden, weights[i]) );
-            hidden = Matrix_concatenateRowMatrix(hidden, inputBias);
+        return compute(input, weights, new Matrix(1, outputDimension));
+    }
+
+    // Compute input through the layers of weights into result, with the hidden layers in scratch matrices
+    private Matrix compute(Matrix input, Matrix[] weights, Matrix result) {
+        final MatrixArena arena = MatrixArena.get();
+        final long mark = arena.mark();
+        try {
+            Matrix hidden = Matrix_concatenateRowMatrix(input, inputBias, arena.rowMatrix(input.nbColumns+1));
+            for (int i=0; i<nbLayers-1; i++) {
+                final int hiddenDimension = weights[i].nbColumns;
+                final Matrix hidden_act = Matrix_mDot(hidden, weights[i], arena.rowMatrix(hiddenDimension));
+                activation.activate(hidden_act, hidden_act);
+                hidden = Matrix_concatenateRowMatrix(hidden_act, inputBias, arena.rowMatrix(hiddenDimension+1));
+            }
+            activation.activate(Matrix_mDot(hidden, weights[nbLayers-1], result), result);
+
+            return result;
+        } finally {
+            arena.reset(mark);
         }
-        Matrix output = activation.activate( Matrix_mDot(hidden, weights[nbLayers-1]) );
-        return output;
     }
 
 
@@ -100,43 +161,20 @@ public class FeedForwardNetworkV4 {
             throw new NeuralNetworkError("FeedforwardLayer.getOutput(Matrix) - "+ideal.nbRows+" - "+ideal.nbColumns +" - "+inputDimension+" - "+outputDimension);
         }
 
-        // Forward propagation
-        Matrix[] hiddens_unact = new Matrix[nbLayers]; // Unactivated
-        Matrix[] hiddens_act_bias = new Matrix[nbLayers]; // Activated, with bias
-
-        hiddens_unact[0] = input.cp();
-        hiddens_act_bias[0] = Matrix_concatenateRowMatrix(hiddens_unact[0], inputBias);
-        for (int layerI=1; layerI<nbLayers; layerI++) {
-            hiddens_unact[layerI] = Matrix_mDot(hiddens_act_bias[layerI-1], weights[layerI-1]);
-            hiddens_act_bias[layerI] = activation.activate(hiddens_unact[layerI]);
-            hiddens_act_bias[layerI] = Matrix_concatenateRowMatrix(hiddens_act_bias[layerI], inputBias);
-        }
-        Matrix output_unact = Matrix_mDot(hiddens_act_bias[nbLayers-1], weights[nbLayers-1]);
-        Matrix output_act = activation.activate(output_unact);
-
-        // Backpropagation
-        Matrix[] signalsError = new Matrix[nbLayers];
-        Matrix[] weightsDelta = new Matrix[nbLayers];
-
-        signalsError[nbLayers-1] = Matrix_substract(output_act, ideal) // signalError[i] -> from layer i to layer i-1
-                .pMult(activation.derivative(output_unact));
-        weightsDelta[nbLayers-1] = Matrix_mDot(Matrix_transpose(hiddens_act_bias[nbLayers-1]), signalsError[nbLayers-1])
-                .mult(-1 * learningRate);
-        for (int lay=nbLayers-2; lay>=0; lay--) {
-            signalsError[lay] = Matrix_mDot(signalsError[lay+1], Matrix_transpose(weights[lay+1]))
-                    .deleteLastColumn() // delete bias because we don't propagate its error
-                    .pMult(activation.derivative(hiddens_unact[lay+1]));
-            weightsDelta[lay] = Matrix_mDot( Matrix_transpose(hiddens_act_bias[lay]), signalsError[lay] )
-                    .mult(-1 * learningRate);
-        }
+        propagateForward(input);
+        propagateBackward(ideal, learningRate);
 
         // Weights update
         for (int lay=0; lay<nbLayers; lay++) {
-            weights[lay].add(weightsDelta[lay]).add(Matrix_mult(lastWeightsChange[lay], momentum));
+            weights[lay].expr().add(weightsDelta[lay]).add(lastWeightsChange[lay].expr().mult(momentum))
+                    .evaluate(weights[lay]);
+            // weightsDelta becomes the last change, and the old last change buffer is reused for the next delta
+            final Matrix lastWeightChange = lastWeightsChange[lay];
             lastWeightsChange[lay] = weightsDelta[lay];
+            weightsDelta[lay] = lastWeightChange;
         }
 
-        return Math.abs(Matrix_substract(ideal, output_act).avg());
+        return Math.abs(Matrix_meanDifference(ideal, output_act));
     }
 
 
@@ -154,59 +192,71 @@ public class FeedForwardNetworkV4 {
         // Initialization
         int nbPatterns = inputs.length;
 
-        Matrix[] weights_delta_sum = new Matrix[nbLayers];
-        for (int layerI=0; layerI<nbLayers; layerI++) {
-            weights_delta_sum[layerI] = new Matrix(weights[layerI].nbRows, weights[layerI].nbColumns);
-            weights_delta_sum[layerI].setZero();
+        for (Matrix weightDeltaSum : weightsDeltaSum) {
+            weightDeltaSum.setZero();
         }
         double error_sum = 0;
 
         for (int patternI=0; patternI < nbPatterns; patternI++) {
-            // Forward propagation
-            Matrix[] hiddens_unact = new Matrix[nbLayers]; // Unactiavted
-            Matrix[] hiddens_act_bias = new Matrix[nbLayers]; // Activated, with bias
-
-            hiddens_unact[0] = inputs[patternI].cp();
-            hiddens_act_bias[0] = Matrix_concatenateRowMatrix(hiddens_unact[0], inputBias);
-            for (int layerI=1; layerI<nbLayers; layerI++) {
-                hiddens_unact[layerI] = Matrix_mDot(hiddens_act_bias[layerI-1], weights[layerI-1]);
-                hiddens_act_bias[layerI] = activation.activate(hiddens_unact[layerI]);
-                hiddens_act_bias[layerI] = Matrix_concatenateRowMatrix(hiddens_act_bias[layerI], inputBias);
+            propagateForward(inputs[patternI]);
+            propagateBackward(ideals[patternI], learningRate);
+            for (int layerI=0; layerI<nbLayers; layerI++) {
+                weightsDeltaSum[layerI].add(weightsDelta[layerI]);
             }
-            Matrix output_unact = Matrix_mDot(hiddens_act_bias[nbLayers-1], weights[nbLayers-1]);
-            Matrix output_act = activation.activate(output_unact);
 
-            // Backpropagation
-            Matrix[] signalsError = new Matrix[nbLayers];
-            Matrix[] weightsDelta = new Matrix[nbLayers];
-
-            signalsError[nbLayers-1] = Matrix_substract(output_act, ideals[patternI]) // signalError[i] -> from layer i to layer i-1
-                    .pMult(activation.derivative(output_unact));
-            weightsDelta[nbLayers-1] = Matrix_mDot(Matrix_transpose(hiddens_act_bias[nbLayers-1]), signalsError[nbLayers-1])
-                    .mult(-1 * learningRate);
-            weights_delta_sum[nbLayers-1].add(weightsDelta[nbLayers-1]);
-            for (int layerI=nbLayers-2; layerI>=0; layerI--) {
-                signalsError[layerI] = Matrix_mDot(signalsError[layerI+1], Matrix_transpose(weights[layerI+1]))
-                        .deleteLastColumn() // delete bias because we don't propagate its error
-                        .pMult(activation.derivative(hiddens_unact[layerI+1]));
-                weightsDelta[layerI] = Matrix_mDot( Matrix_transpose(hiddens_act_bias[layerI]), signalsError[layerI] )
-                        .mult(-1 * learningRate);
-                weights_delta_sum[layerI].add(weightsDelta[layerI]);
-            }
-
-            error_sum += Math.abs(Matrix_substract(ideals[patternI], output_act).avg());
+            error_sum += Math.abs(Matrix_meanDifference(ideals[patternI], output_act));
         }
 
         // Weights update
         for (int layerI=0; layerI<nbLayers; layerI++) {
-            Matrix weightDelta = weights_delta_sum[layerI];
-            weights[layerI].add(weightDelta).add(Matrix_mult(lastWeightsChange[layerI], momentum));
-            lastWeightsChange[layerI] = weightDelta;
+            weights[layerI].expr().add(weightsDeltaSum[layerI]).add(lastWeightsChange[layerI].expr().mult(momentum))
+                    .evaluate(weights[layerI]);
+            // weightsDeltaSum becomes the last change, and the old last change buffer is reset at the next call
+            final Matrix lastWeightChange = lastWeightsChange[layerI];
+            lastWeightsChange[layerI] = weightsDeltaSum[layerI];
+            weightsDeltaSum[layerI] = lastWeightChange;
         }
 
         return error_sum / nbPatterns;
     }
 
+    /****************************************************************
+     * Forward propagate an input, keeping every layer's values in
+     * the training workspaces
+     * @param input The input to propagate
+     ****************************************************************/
+    private void propagateForward(Matrix input) {
+        Matrix_concatenateRowMatrix(input, inputBias, hiddens_act_bias[0]);
+        for (int layerI=1; layerI<nbLayers; layerI++) {
+            Matrix_mDot(hiddens_act_bias[layerI-1], weights[layerI-1], hiddens_unact[layerI]);
+            activation.activate(hiddens_unact[layerI], hiddens_act[layerI]);
+        }
+        Matrix_mDot(hiddens_act_bias[nbLayers-1], weights[nbLayers-1], output_unact);
+        activation.activate(output_unact, output_act);
+    }
+
+    /****************************************************************
+     * Backpropagate the error of the last propagateForward() call
+     * into weightsDelta
+     * @param ideal The ideal output
+     * @param learningRate The learning rate
+     ****************************************************************/
+    private void propagateBackward(Matrix ideal, double learningRate) {
+        final int lastLayer = nbLayers-1;
+        output_act.expr().substract(ideal).pMult(activation.derivative(output_unact, signalsDerivative[lastLayer]))
+                .evaluate(signalsError[lastLayer]);
+        Matrix_transposeMDot(hiddens_act_bias[lastLayer], signalsError[lastLayer], weightsDelta[lastLayer])
+                .mult(-1 * learningRate);
+        for (int lay=nbLayers-2; lay>=0; lay--) {
+            // The bias row of the weights is skipped because we don't propagate its error
+            final Matrix nextWeights = weights[lay+1];
+            Matrix_mDotTranspose(signalsError[lay+1], nextWeights.view(0, 0, nextWeights.nbRows-1, nextWeights.nbColumns), backErrors[lay]);
+            Matrix_pMult(backErrors[lay], activation.derivative(hiddens_unact[lay+1], signalsDerivative[lay]), signalsError[lay]);
+            Matrix_transposeMDot(hiddens_act_bias[lay], signalsError[lay], weightsDelta[lay])
+                    .mult(-1 * learningRate);
+        }
+    }
+
     public double train_simulatedAnnealing(Matrix[] inputs, Matrix[] ideals, double magnitude, int iterations) {
         if (inputs.length != ideals.length) {
             throw new NeuralNetworkError("FeedforwardNetwork.learn(Matrix[],Matrix[],double,double)");
@@ -225,17 +275,14 @@ public class FeedForwardNetworkV4 {
         double actual_error_sum = 0;
         double new_error_sum = 0;
 
+        final RandomGenerator rand = RandomUtils.current();
         for (int epochI=0; epochI<iterations; epochI++) {
             actualMagnitude = (iterations-epochI) * magnitude / iterations;
 
             Matrix[] newWeights = new Matrix[nbLayers];
             for (int i=0; i<nbLayers; i++) {
                 newWeights[i] = weights[i].cp();
-                for (int row=0; row<newWeights[i].nbRows; row++) {
-                    for (int col=0; col<newWeights[i].nbColumns; col++) {
-                        newWeights[i].array[row][col] += - actualMagnitude + (2 * actualMagnitude * Math.random()) ;
-                    }
-                }
+                newWeights[i].randomize(rand, -actualMagnitude, actualMagnitude);
             }
 
             /*double delta = - actualMagnitude + (2 * actualMagnitude * Math.random());
@@ -243,17 +290,19 @@ public class FeedForwardNetworkV4 {
 
             actual_error_sum = 0;
             new_error_sum = 0;
-            for (int patternI=0; patternI<nbPatterns; patternI++) {
-                Matrix actual_output = compute(inputs[patternI]);
-                actual_error_sum += Math.abs(Matrix_substract(ideals[patternI], actual_output).avg());
-
-                Matrix new_output = Matrix_concatenateRowMatrix(inputs[patternI], inputBias);
-                for (int i=0; i<nbLayers-1; i++) {
-                    new_output = activation.activate( Matrix_mDot(new_output, newWeights[i]) );
-                    new_output = Matrix_concatenateRowMatrix(new_output, inputBias);
+            final MatrixArena arena = MatrixArena.get();
+            final long mark = arena.mark();
+            try {
+                final Matrix output = arena.rowMatrix(outputDimension);
+                for (int patternI=0; patternI<nbPatterns; patternI++) {
+                    compute(inputs[patternI], weights, output);
+                    actual_error_sum += Math.abs(Matrix_meanDifference(ideals[patternI], output));
+
+                    compute(inputs[patternI], newWeights, output);
+                    new_error_sum += Math.abs(Matrix_meanDifference(ideals[patternI], output));
                 }
-                new_output = activation.activate( Matrix_mDot(new_output, newWeights[nbLayers-1]) );
-                new_error_sum += Math.abs(Matrix_substract(ideals[patternI], new_output).avg());
+            } finally {
+                arena.reset(mark);
             }
 
             if (actual_error_sum > new_error_sum) {
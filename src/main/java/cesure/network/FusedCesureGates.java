@@ -0,0 +1,184 @@
+package cesure.network;
+
+import cesure.utils.CompositeRowMatrix;
+import cesure.utils.Matrix;
+import cesure.utils.MatrixKernels;
+import cesure.utils.SparseRowMatrix;
+
+import static cesure.utils.MatrixMath.Matrix_transpose;
+
+/****************************************************************
+ * Gates reading the same input, computed together : the first
+ * products of their first layers are stacked in one matrix, so
+ * the input goes through a single kernel, then each gate goes on
+ * through its own layers
+ *
+ * The stacked weights are copies made by the constructor, and the
+ * gates don't change after theirs : this object can be shared by
+ * threads. The outputs are in a Workspace, one per thread
+ * A row-major copy of the stacked columns of the sparse end of
+ * the inputs is made on first use
+ ****************************************************************/
+public class FusedCesureGates {
+
+    private final CesureGate[] gates;
+    private final int inputDimension;
+
+    // The first products of the gates end to end, one row per output like CesureGate's transposed
+    // weights, and the biases of the full-rank ones
+    private final Matrix stackedWeights;
+    private final Matrix stackedBias;
+
+    // Row-major copy of the last columns of stackedWeights, for the sparse end of the inputs
+    private volatile Matrix sparseRows;
+
+    public FusedCesureGates(CesureGate... gates) {
+        if (gates.length == 0) {
+            throw new NeuralNetworkError("FusedCesureGates(CesureGate...)");
+        }
+        inputDimension = gates[0].getInputDimension();
+        int nbRows = 0;
+        for (CesureGate gate : gates) {
+            if (gate.getInputDimension() != inputDimension) {
+                throw new NeuralNetworkError("FusedCesureGates(CesureGate...) - "+gate.getInputDimension()+" - "+inputDimension);
+            }
+            nbRows += gate.getFirstProduct().nbRows;
+        }
+        this.gates = gates.clone();
+
+        stackedWeights = new Matrix(nbRows, inputDimension);
+        stackedBias = new Matrix(1, nbRows);
+        int row = 0;
+        for (CesureGate gate : gates) {
+            final Matrix product = gate.getFirstProduct();
+            product.cp(stackedWeights.view(row, 0, product.nbRows, inputDimension));
+            final Matrix bias = gate.getFirstBias();
+            if (bias != null) {
+                bias.cp(stackedBias.view(0, row, 1, product.nbRows));
+            }
+            row += product.nbRows;
+        }
+    }
+
+    /****************************************************************
+     * The outputs of the computations of one thread
+     ****************************************************************/
+    public static class Workspace {
+
+        // The stacked first products of the input, and a view on each gate's part
+        private final Matrix products;
+        private final Matrix[] gateProducts;
+
+        private final Matrix[] outputs;
+
+        private Workspace(FusedCesureGates fused) {
+            products = new Matrix(1, fused.stackedBias.nbColumns);
+            gateProducts = new Matrix[fused.gates.length];
+            outputs = new Matrix[fused.gates.length];
+            int row = 0;
+            for (int i=0; i<fused.gates.length; i++) {
+                final int nbRows = fused.gates[i].getFirstProduct().nbRows;
+                gateProducts[i] = products.view(0, row, 1, nbRows);
+                outputs[i] = new Matrix(1, fused.gates[i].getOutputDimension());
+                row += nbRows;
+            }
+        }
+    }
+
+    public Workspace newWorkspace() {
+        return new Workspace(this);
+    }
+
+    /****************************************************************
+     * Compute the gates on an input made of several row matrices
+     * @param input : The input to compute
+     * @param workspace : The workspace receiving the outputs
+     * @return The output of each gate, in the constructor's order :
+     *         matrices of workspace, overwritten by its next use
+     ****************************************************************/
+    public Matrix[] compute(CompositeRowMatrix input, Workspace workspace) {
+        if (input.nbColumns != inputDimension) {
+            throw new NeuralNetworkError("FusedCesureGates.compute(CompositeRowMatrix,Workspace) - "+input.nbColumns+" - "+inputDimension);
+        }
+        return computeFrom(stackedBias, input, null, workspace);
+    }
+
+    /****************************************************************
+     * Compute the gates on an input made of dense row matrices
+     * followed by a sparse one, like CesureGate does
+     * @param input : The dense start of the input
+     * @param sparseInput : The end of the input
+     * @param workspace : The workspace receiving the outputs
+     * @return The output of each gate : matrices of workspace
+     ****************************************************************/
+    public Matrix[] compute(CompositeRowMatrix input, SparseRowMatrix sparseInput, Workspace workspace) {
+        if (input.nbColumns + sparseInput.nbColumns != inputDimension) {
+            throw new NeuralNetworkError("FusedCesureGates.compute(CompositeRowMatrix,SparseRowMatrix,Workspace) - "+input.nbColumns
+                    +" - "+sparseInput.nbColumns+" - "+inputDimension);
+        }
+        return computeFrom(stackedBias, input, sparseInput, workspace);
+    }
+
+    /****************************************************************
+     * Fold a constant start of the inputs into the stacked first
+     * products, like CesureGate.foldInput()
+     * @param constantInput : The first columns of the inputs
+     * @param result : The folded start, a row matrix of
+     *                 getFoldedDimension() columns
+     * @return result
+     ****************************************************************/
+    public Matrix foldInput(Matrix constantInput, Matrix result) {
+        if (!constantInput.isRowMatrix() || constantInput.nbColumns > inputDimension
+                || !result.isRowMatrix() || result.nbColumns != getFoldedDimension()) {
+            throw new NeuralNetworkError("FusedCesureGates.foldInput(Matrix,Matrix) - "+constantInput.nbColumns
+                    +" - "+result.nbColumns+" - "+inputDimension+" - "+getFoldedDimension());
+        }
+        MatrixKernels.affineTransposed(constantInput, stackedWeights, stackedBias, result);
+        return result;
+    }
+
+    public int getFoldedDimension() {
+        return stackedBias.nbColumns;
+    }
+
+    /****************************************************************
+     * Compute the gates on an input whose start was folded by
+     * foldInput(), optionally ending with a sparse row matrix
+     * @param folded : The folded start of the input
+     * @param input : The dense middle of the input
+     * @param sparseInput : The end of the input, or null
+     * @param workspace : The workspace receiving the outputs
+     * @return The output of each gate : matrices of workspace
+     ****************************************************************/
+    public Matrix[] computeFolded(Matrix folded, CompositeRowMatrix input, SparseRowMatrix sparseInput, Workspace workspace) {
+        final int sparseColumns = sparseInput == null ? 0 : sparseInput.nbColumns;
+        if (!folded.isRowMatrix() || folded.nbColumns != getFoldedDimension() || input.nbColumns + sparseColumns > inputDimension) {
+            throw new NeuralNetworkError("FusedCesureGates.computeFolded(Matrix,CompositeRowMatrix,SparseRowMatrix,Workspace) - "+folded.nbColumns
+                    +" - "+input.nbColumns+" - "+sparseColumns+" - "+inputDimension);
+        }
+        return computeFrom(folded, input, sparseInput, workspace);
+    }
+
+    // products = start + the end of the input . the stacked first products
+    private Matrix[] computeFrom(Matrix start, CompositeRowMatrix input, SparseRowMatrix sparseInput, Workspace workspace) {
+        final int firstColumn = inputDimension - input.nbColumns - (sparseInput == null ? 0 : sparseInput.nbColumns);
+        MatrixKernels.affineTransposed(input, stackedWeights, firstColumn, start, workspace.products);
+        if (sparseInput != null) {
+            MatrixKernels.accumulateRows(sparseInput, getSparseRows(sparseInput.nbColumns), 0, workspace.products);
+        }
+        for (int i=0; i<gates.length; i++) {
+            gates[i].computeFromFirstProduct(workspace.gateProducts[i], workspace.outputs[i]);
+        }
+        return workspace.outputs;
+    }
+
+    // Built at most once per thread racing on the first use, all the copies being equal
+    private Matrix getSparseRows(int nbColumns) {
+        Matrix sparseRows = this.sparseRows;
+        if (sparseRows == null || sparseRows.nbRows != nbColumns) {
+            sparseRows = Matrix_transpose(stackedWeights.view(0, inputDimension-nbColumns, stackedWeights.nbRows, nbColumns));
+            this.sparseRows = sparseRows;
+        }
+        return sparseRows;
+    }
+}
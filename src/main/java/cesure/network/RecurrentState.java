@@ -0,0 +1,155 @@
+package cesure.network;
+
+import cesure.utils.CompositeRowMatrix;
+import cesure.utils.Matrix;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+import static cesure.network.Cesure.CONTEXT_DIMENSION;
+import static cesure.network.Cesure.INFOS_DIMENSION;
+import static cesure.network.Cesure.OUTPUTGATE_OUTPUT_SIZE;
+
+/****************************************************************
+ * What a CesureModel changes while going through a music : its
+ * infos and context, and the workspaces of its steps
+ * A state is used by one thread at a time, its model can be
+ * shared by any number of states
+ ****************************************************************/
+public class RecurrentState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final CesureModel model;
+
+    final Matrix infos;
+    final Matrix context;
+
+    private boolean fusedContextGates;
+
+    // Workspaces built by initWorkspaces() : the note of the last step, and the gates inputs
+    // reading context and note in place, without infos which foldInfos() folds into the gates
+    transient Matrix note;
+    transient CompositeRowMatrix outputGateInput;
+    transient CompositeRowMatrix contextInput;
+
+    // The infos and first biases of the output, forget, memory and memoryInput gates, folded for
+    // the current music by foldInfos()
+    transient Matrix[] foldedInfos;
+
+    // The outputs and folded infos of the model's fused context gates, null unless fusedContextGates
+    transient FusedCesureGates.Workspace contextGatesWorkspace;
+    transient Matrix contextGatesFoldedInfos;
+
+
+    RecurrentState(CesureModel model) {
+        this.model = model;
+        infos = Matrix.newRowMatrix(INFOS_DIMENSION);
+        context = Matrix.newRowMatrix(CONTEXT_DIMENSION);
+        initWorkspaces();
+    }
+
+    /****************************************************************
+     * Copy constructor : the copy goes on from the same point of the
+     * same music, independently of the copied state
+     * @param copied The state to copy
+     ****************************************************************/
+    public RecurrentState(RecurrentState copied) {
+        this(copied.model, copied);
+    }
+
+    /****************************************************************
+     * Copy a state onto another model
+     * @param model The model of the copy
+     * @param copied The state whose infos and context are copied
+     ****************************************************************/
+    public RecurrentState(CesureModel model, RecurrentState copied) {
+        this.model = model;
+        infos = copied.infos.cp();
+        context = copied.context.cp();
+        fusedContextGates = copied.fusedContextGates;
+        initWorkspaces();
+    }
+
+    // A state going on from given infos and context, like the ones of a network saved before the states
+    RecurrentState(CesureModel model, Matrix infos, Matrix context) {
+        this.model = model;
+        this.infos = infos.cp();
+        this.context = context.cp();
+        initWorkspaces();
+    }
+
+    /****************************************************************
+     * Build the workspaces of a step : after it, computing or
+     * inputting a note allocates nothing
+     ****************************************************************/
+    private void initWorkspaces() {
+        note = new Matrix(1, OUTPUTGATE_OUTPUT_SIZE);
+        outputGateInput = new CompositeRowMatrix(context);
+        contextInput = outputGateInput.append(note);
+        foldedInfos = new Matrix[] {new Matrix(1, model.outputGate.getFoldedDimension()), new Matrix(1, model.forgetGate.getFoldedDimension()),
+                new Matrix(1, model.memoryGate.getFoldedDimension()), new Matrix(1, model.memoryInputGate.getFoldedDimension())};
+        contextGatesWorkspace = null;
+        foldInfos();
+    }
+
+    /****************************************************************
+     * Fold infos, constant for a whole music, into the first layer
+     * of each gate : the steps then only compute the context and
+     * note parts of the inputs
+     ****************************************************************/
+    private void foldInfos() {
+        model.outputGate.foldInput(infos, foldedInfos[0]);
+        model.forgetGate.foldInput(infos, foldedInfos[1]);
+        model.memoryGate.foldInput(infos, foldedInfos[2]);
+        model.memoryInputGate.foldInput(infos, foldedInfos[3]);
+        if (fusedContextGates) {
+            final FusedCesureGates contextGates = model.getContextGates();
+            if (contextGatesWorkspace == null) {
+                contextGatesWorkspace = contextGates.newWorkspace();
+                contextGatesFoldedInfos = new Matrix(1, contextGates.getFoldedDimension());
+            }
+            contextGates.foldInput(infos, contextGatesFoldedInfos);
+        } else {
+            contextGatesWorkspace = null;
+        }
+    }
+
+    /****************************************************************
+     * Choose how the context gates are computed
+     * @param fused True to compute them together, reading their
+     *              shared input once, false to compute them one by
+     *              one (the default)
+     ****************************************************************/
+    public void setFusedContextGates(boolean fused) {
+        fusedContextGates = fused;
+        foldInfos();
+    }
+
+    public boolean isFusedContextGates() {
+        return fusedContextGates;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initWorkspaces();
+    }
+
+
+    /****************************************************************
+     * Initialize the state for a new music
+     * @param infos The music infos vector for the new music
+     ****************************************************************/
+    public void startNewMusic(Matrix infos) {
+        if (infos.length != INFOS_DIMENSION) {
+            throw new NeuralNetworkError("RecurrentState.startNewMusic(Matrix)");
+        }
+        context.setZero();
+        for (int i=0; i<infos.length; i++) {
+            this.infos.set(i, infos.get(i));
+        }
+        foldInfos();
+    }
+
+}
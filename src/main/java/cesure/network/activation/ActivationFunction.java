@@ -1,45 +1,145 @@
 package cesure.network.activation;
 
 import cesure.network.NeuralNetworkError;
+import cesure.utils.CompositeRowMatrix;
+import cesure.utils.FloatMatrix;
 import cesure.utils.Matrix;
 
 import java.io.Serializable;
 
+import static cesure.utils.FloatMatrixMath.FloatMatrix_affine;
+import static cesure.utils.MatrixMath.Matrix_affine;
+import static cesure.utils.MatrixMath.Matrix_affineTransposed;
+
+/****************************************************************
+ * An activation function : the subclasses are stateless
+ * singletons, and override the bulk kernels with the softsign
+ * kernels of MatrixKernels, run by the selected MatrixBackend
+ ****************************************************************/
 public abstract class ActivationFunction implements Serializable {
 
+    // The activation functions keep the serialVersionUIDs computed for their classes before they became
+    // singletons, so the gates of older saves still load
+    private static final long serialVersionUID = -5377968679553286083L;
+
+    /****************************************************************
+     * Activation functions are stateless, so a clone is the same
+     * instance
+     ****************************************************************/
     public ActivationFunction clone() {
-        if (this instanceof ActivationSigmoid) {
-            return new ActivationSigmoid();
-        } else if (this instanceof ActivationTanh) {
-            return new ActivationTanh();
-        } else if (this instanceof ActivationIdentity) {
-            return new ActivationIdentity();
-        } else {
-            throw new NeuralNetworkError("ActivationFunction.clone()");
-        }
+        return this;
     }
 
     public Matrix activate(Matrix x) {
-        double[][] newArray = new double[x.nbRows][x.nbColumns];
+        return activate(x, new Matrix(x.nbRows, x.nbColumns));
+    }
+
+    public Matrix activate(Matrix x, Matrix result) {
+        if (x.nbRows != result.nbRows || x.nbColumns != result.nbColumns) {
+            throw new NeuralNetworkError("ActivationFunction.activate(Matrix,Matrix)");
+        }
+        if (x.isContiguous() && result.isContiguous()) {
+            activate(x.array, x.offset, result.array, result.offset, x.length);
+            return result;
+        }
+        for (int i=0; i<x.nbRows; i++) {
+            activate(x.array, x.offset + i*x.stride, result.array, result.offset + i*result.stride, x.nbColumns);
+        }
+        return result;
+    }
+
+    public FloatMatrix activate(FloatMatrix x, FloatMatrix result) {
+        if (x.nbRows != result.nbRows || x.nbColumns != result.nbColumns) {
+            throw new NeuralNetworkError("ActivationFunction.activate(FloatMatrix,FloatMatrix)");
+        }
         for (int i=0; i<x.nbRows; i++) {
-            for (int j=0; j<x.nbColumns; j++) {
-                newArray[i][j] = activate(x.array[i][j]);
-            }
+            activate(x.array, x.offset + i*x.stride, result.array, result.offset + i*result.stride, x.nbColumns);
         }
-        return new Matrix(newArray);
+        return result;
     }
 
     public Matrix derivative(Matrix x) {
-        double[][] newArray = new double[x.nbRows][x.nbColumns];
+        return derivative(x, new Matrix(x.nbRows, x.nbColumns));
+    }
+
+    public Matrix derivative(Matrix x, Matrix result) {
+        if (x.nbRows != result.nbRows || x.nbColumns != result.nbColumns) {
+            throw new NeuralNetworkError("ActivationFunction.derivative(Matrix,Matrix)");
+        }
+        if (x.isContiguous() && result.isContiguous()) {
+            derivative(x.array, x.offset, result.array, result.offset, x.length);
+            return result;
+        }
         for (int i=0; i<x.nbRows; i++) {
-            for (int j=0; j<x.nbColumns; j++) {
-                newArray[i][j] = derivative(x.array[i][j]);
-            }
+            derivative(x.array, x.offset + i*x.stride, result.array, result.offset + i*result.stride, x.nbColumns);
         }
-        return new Matrix(newArray);
+        return result;
     }
 
     public abstract double activate(double x);
     public abstract double derivative(double x);
 
+
+    /****************************************************************
+     * Fused layer : result = activate(x . weights + bias), activated
+     * in place right after the affine part, while it is in cache
+     ****************************************************************/
+    public Matrix activateAffine(Matrix x, Matrix weights, Matrix bias, Matrix result) {
+        return activate(Matrix_affine(x, weights, bias, result), result);
+    }
+
+    public Matrix activateAffine(CompositeRowMatrix x, Matrix weights, Matrix bias, Matrix result) {
+        return activate(Matrix_affine(x, weights, bias, result), result);
+    }
+
+    public FloatMatrix activateAffine(FloatMatrix x, FloatMatrix weights, FloatMatrix bias, FloatMatrix result) {
+        return activate(FloatMatrix_affine(x, weights, bias, result), result);
+    }
+
+    /****************************************************************
+     * Fused layer with the weights stored one row per output :
+     * result = activate(x . transpose(weightsT) + bias)
+     ****************************************************************/
+    public Matrix activateAffineTransposed(Matrix x, Matrix weightsT, Matrix bias, Matrix result) {
+        return activate(Matrix_affineTransposed(x, weightsT, bias, result), result);
+    }
+
+    public Matrix activateAffineTransposed(CompositeRowMatrix x, Matrix weightsT, Matrix bias, Matrix result) {
+        return activate(Matrix_affineTransposed(x, weightsT, bias, result), result);
+    }
+
+    /****************************************************************
+     * Fused layer keeping the values before activation :
+     * unactivated = x . weights + bias, result = activate(unactivated)
+     ****************************************************************/
+    public Matrix activateAffine(Matrix x, Matrix weights, Matrix bias, Matrix unactivated, Matrix result) {
+        return activate(Matrix_affine(x, weights, bias, unactivated), result);
+    }
+
+
+    /****************************************************************
+     * Bulk kernels : result[resultOffset+i] = f(x[xOffset+i]) for
+     * i in [0,length). result may be x at the same offset
+     * The subclasses override them with their formula inlined, the
+     * versions here call the scalar functions
+     ****************************************************************/
+
+    public void activate(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        for (int i=0; i<length; i++) {
+            result[resultOffset+i] = activate(x[xOffset+i]);
+        }
+    }
+
+    public void activate(float[] x, int xOffset, float[] result, int resultOffset, int length) {
+        for (int i=0; i<length; i++) {
+            result[resultOffset+i] = (float) activate(x[xOffset+i]);
+        }
+    }
+
+    public void derivative(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        for (int i=0; i<length; i++) {
+            result[resultOffset+i] = derivative(x[xOffset+i]);
+        }
+    }
+
 }
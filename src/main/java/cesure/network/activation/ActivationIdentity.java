@@ -1,8 +1,19 @@
 package cesure.network.activation;
 
+import java.util.Arrays;
+
 public class ActivationIdentity extends ActivationFunction {
 
-    public ActivationIdentity() {}
+    private static final long serialVersionUID = 1964321709172826989L;
+
+    public static final ActivationIdentity INSTANCE = new ActivationIdentity();
+
+    private ActivationIdentity() {}
+
+    // Keep the singleton when deserializing
+    private Object readResolve() {
+        return INSTANCE;
+    }
 
     @Override
     public double activate(double x) {
@@ -13,4 +24,21 @@ public class ActivationIdentity extends ActivationFunction {
     public double derivative(double x) {
         return 1;
     }
+
+
+
+    @Override
+    public void activate(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        System.arraycopy(x, xOffset, result, resultOffset, length);
+    }
+
+    @Override
+    public void activate(float[] x, int xOffset, float[] result, int resultOffset, int length) {
+        System.arraycopy(x, xOffset, result, resultOffset, length);
+    }
+
+    @Override
+    public void derivative(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        Arrays.fill(result, resultOffset, resultOffset+length, 1);
+    }
 }
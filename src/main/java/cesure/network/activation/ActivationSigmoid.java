@@ -1,11 +1,22 @@
 package cesure.network.activation;
 
+import cesure.utils.MatrixKernels;
+
 import static cesure.utils.CesureMath.abs;
 import static cesure.utils.CesureMath.square;
 
 public class ActivationSigmoid extends ActivationFunction {
 
-    public ActivationSigmoid() {}
+    private static final long serialVersionUID = -7585194348604822630L;
+
+    public static final ActivationSigmoid INSTANCE = new ActivationSigmoid();
+
+    private ActivationSigmoid() {}
+
+    // Keep the singleton when deserializing
+    private Object readResolve() {
+        return INSTANCE;
+    }
 
 
 
@@ -21,6 +32,25 @@ public class ActivationSigmoid extends ActivationFunction {
 
 
 
+    // Softsign without branches, on the MatrixBackend (the float one with SIMD when available)
+
+    @Override
+    public void activate(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        MatrixKernels.softsign(x, xOffset, result, resultOffset, length, 0.5, -0.5);
+    }
+
+    @Override
+    public void activate(float[] x, int xOffset, float[] result, int resultOffset, int length) {
+        MatrixKernels.softsign(x, xOffset, result, resultOffset, length, 0.5f, -0.5f);
+    }
+
+    @Override
+    public void derivative(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        MatrixKernels.softsignDerivative(x, xOffset, result, resultOffset, length, -0.5);
+    }
+
+
+
     public double old_activate(double x) {
         return 1 / (1 + Math.exp(-x));
     }
@@ -1,11 +1,22 @@
 package cesure.network.activation;
 
+import cesure.utils.MatrixKernels;
+
 import static cesure.utils.CesureMath.abs;
 import static cesure.utils.CesureMath.square;
 
 public class ActivationTanh extends ActivationFunction {
 
-    public ActivationTanh() {}
+    private static final long serialVersionUID = -1747679212810585909L;
+
+    public static final ActivationTanh INSTANCE = new ActivationTanh();
+
+    private ActivationTanh() {}
+
+    // Keep the singleton when deserializing
+    private Object readResolve() {
+        return INSTANCE;
+    }
 
 
 
@@ -21,6 +32,25 @@ public class ActivationTanh extends ActivationFunction {
 
 
 
+    // Softsign without branches, on the MatrixBackend (the float one with SIMD when available)
+
+    @Override
+    public void activate(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        MatrixKernels.softsign(x, xOffset, result, resultOffset, length, 0, 1);
+    }
+
+    @Override
+    public void activate(float[] x, int xOffset, float[] result, int resultOffset, int length) {
+        MatrixKernels.softsign(x, xOffset, result, resultOffset, length, 0f, 1f);
+    }
+
+    @Override
+    public void derivative(double[] x, int xOffset, double[] result, int resultOffset, int length) {
+        MatrixKernels.softsignDerivative(x, xOffset, result, resultOffset, length, 1);
+    }
+
+
+
     public double old_activate(double x) {
         return Math.tanh(x);
     }
@@ -3,7 +3,8 @@ package cesure.network.training;
 import cesure.network.Cesure;
 import cesure.network.CesureMusic;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
 
 public class Annealing {
 
@@ -12,13 +13,14 @@ public class Annealing {
      ****************************************************************/
     private static class AnnealingThread2 extends Thread {
 
-        private final Random rand;
+        private final RandomGenerator rand;
 
         private final NetworkAndError source;
 
         private final CesureMusic music;
         private final int start;
         private final double magnitude;
+        private final boolean floatPrecision;
 
         private NetworkAndError output;
 
@@ -28,19 +30,21 @@ public class Annealing {
          * @param music The music to compute network's error on
          * @param start See SimulatedAnnealing.java
          * @param magnitude The magnitude for each child
+         * @param floatPrecision Compute the error in single precision
          ****************************************************************/
-        private AnnealingThread2(Random rand, NetworkAndError source, CesureMusic music, int start, double magnitude) {
+        private AnnealingThread2(RandomGenerator rand, NetworkAndError source, CesureMusic music, int start, double magnitude, boolean floatPrecision) {
             this.rand = rand;
             this.source = source;
             this.music = music;
             this.start = start;
             this.magnitude = magnitude;
+            this.floatPrecision = floatPrecision;
         }
 
         @Override
         public void run() {
             Cesure newNetwork = new Cesure(source.network, rand, magnitude);
-            output = new NetworkAndError(newNetwork, newNetwork.calculateErrorSum(music,start));
+            output = new NetworkAndError(newNetwork, calculateErrorSum(newNetwork, music, start, floatPrecision));
         }
     }
 
@@ -48,7 +52,7 @@ public class Annealing {
     /****************************************************************
      * Perform a genetic annealing training on one music
      * Use multiThreading : each processors will compute possibility
-     * @param rand The Random object to use
+     * @param rand The generator to use
      * @param network The Cesure object to train
      * @param music The CesureMusic object to train on
      * @param start The first note to start guess at :
@@ -57,15 +61,27 @@ public class Annealing {
      * @param magnitude The magnitude
      * @param iterations The number of iterations
      ****************************************************************/
-    public static void train(Random rand, Cesure network, CesureMusic music, int start, double magnitude, int iterations) {
+    public static void train(RandomGenerator rand, Cesure network, CesureMusic music, int start, double magnitude, int iterations) {
+        train(rand, network, music, start, magnitude, iterations, false);
+    }
+
+    /****************************************************************
+     * Same as train(RandomGenerator,Cesure,CesureMusic,int,double,int), but
+     * can compute the candidates' errors in single precision, which
+     * is about twice as fast
+     * @param floatPrecision Compute the errors in single precision
+     ****************************************************************/
+    public static void train(RandomGenerator rand, Cesure network, CesureMusic music, int start, double magnitude, int iterations, boolean floatPrecision) {
 
         final int nbProcessors = Runtime.getRuntime().availableProcessors();
 
-        NetworkAndError bestNetwork = new NetworkAndError(network, network.calculateErrorSum(music,start));
+        NetworkAndError bestNetwork = new NetworkAndError(network, calculateErrorSum(network, music, start, floatPrecision));
 
-        Random[] threadRandoms = new Random[nbProcessors];
+        // One independent generator per thread, split from a seed drawn from rand
+        final SplittableRandom root = new SplittableRandom(rand.nextLong());
+        final SplittableRandom[] threadRandoms = new SplittableRandom[nbProcessors];
         for (int i=0; i<nbProcessors; i++) {
-            threadRandoms[i] = new Random(rand.nextLong());
+            threadRandoms[i] = root.split();
         }
 
         for (int epochI=0; epochI<iterations; epochI++) {
@@ -73,7 +89,7 @@ public class Annealing {
             final AnnealingThread2[] threads = new AnnealingThread2[nbProcessors];
 
             for (int threadI=0; threadI<nbProcessors; threadI++) {
-                threads[threadI] = new AnnealingThread2(threadRandoms[threadI], bestNetwork, music, start, actualMagnitude);
+                threads[threadI] = new AnnealingThread2(threadRandoms[threadI], bestNetwork, music, start, actualMagnitude, floatPrecision);
                 threads[threadI].start();
             }
             try {
@@ -101,4 +117,8 @@ public class Annealing {
         network.setGates(bestNetwork.network);
     }
 
+    private static double calculateErrorSum(Cesure network, CesureMusic music, int start, boolean floatPrecision) {
+        return floatPrecision ? network.calculateErrorSumFloat(music, start) : network.calculateErrorSum(music, start);
+    }
+
 }
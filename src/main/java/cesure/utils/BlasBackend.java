@@ -0,0 +1,141 @@
+package cesure.utils;
+
+/****************************************************************
+ * Hands the big products to the cblas_dgemm of a native library,
+ * everything else is left to another backend
+ * Only usable when AVAILABLE is true : the JVM must be started
+ * with --add-modules jdk.incubator.foreign and
+ * --enable-native-access=ALL-UNNAMED, and a CBLAS library found,
+ * OpenBLAS by default or -Dcesure.blas.library=<path>
+ ****************************************************************/
+public class BlasBackend implements MatrixBackend {
+
+    // True when the native library is loaded, -Dcesure.blas=false disables it
+    public static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.foreign").isPresent()
+            && !"false".equals(System.getProperty("cesure.blas"))
+            && NativeBlas.isLoaded();
+
+    // From this number of multiply-adds, the product pays for copying its operands to native memory
+    public static final long BLAS_THRESHOLD = 1L << 17;
+
+    // The backend computing the rest
+    public final MatrixBackend fallback;
+
+    public BlasBackend(MatrixBackend fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public String getName() {
+        return "blas";
+    }
+
+
+    @Override
+    public void mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if ((long) matrix1.nbRows * matrix1.nbColumns * matrix2.nbColumns >= BLAS_THRESHOLD) {
+            NativeBlas.dgemm(matrix1, false, matrix2, false, result);
+        } else {
+            fallback.mDot(matrix1, matrix2, result);
+        }
+    }
+
+    // A row vector product does as many multiply-adds as it copies elements, the copies would cost more than BLAS saves
+    @Override
+    public void mDotRowVector(Matrix vector, Matrix matrix, Matrix result) {
+        fallback.mDotRowVector(vector, matrix, result);
+    }
+
+    @Override
+    public void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if ((long) matrix1.nbColumns * matrix1.nbRows * matrix2.nbColumns >= BLAS_THRESHOLD) {
+            NativeBlas.dgemm(matrix1, true, matrix2, false, result);
+        } else {
+            fallback.transposeMDot(matrix1, matrix2, result);
+        }
+    }
+
+    @Override
+    public void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if ((long) matrix1.nbRows * matrix1.nbColumns * matrix2.nbRows >= BLAS_THRESHOLD) {
+            NativeBlas.dgemm(matrix1, false, matrix2, true, result);
+        } else {
+            fallback.mDotTranspose(matrix1, matrix2, result);
+        }
+    }
+
+    // Like mDotRowVector, a row vector product isn't worth the copies
+    @Override
+    public void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        fallback.accumulateDots(vector, vectorOffset, length, matrix, matrixOffset, stride, result, resultOffset, nbRows);
+    }
+
+
+    // The element-wise ops would also spend more time in copies than in BLAS
+
+    @Override
+    public void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        fallback.add(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        fallback.substract(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        fallback.pMult(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void mult(double[] a, int aOffset, int length, double value) {
+        fallback.mult(a, aOffset, length, value);
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        fallback.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return fallback.dot(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sum(double[] a, int aOffset, int length) {
+        return fallback.sum(a, aOffset, length);
+    }
+
+    @Override
+    public double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return fallback.sumDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return fallback.sumAbsDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return fallback.sumSquaredDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        return fallback.countThresholdMismatches(a, aOffset, b, bOffset, length, threshold);
+    }
+
+    @Override
+    public void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        fallback.softsign(x, xOffset, result, resultOffset, length, shift, scale);
+    }
+
+    @Override
+    public void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        fallback.softsignDerivative(x, xOffset, result, resultOffset, length, scale);
+    }
+}
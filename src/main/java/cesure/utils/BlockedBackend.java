@@ -0,0 +1,189 @@
+package cesure.utils;
+
+/****************************************************************
+ * Scalar loops ordered for the cache : row vectors go through
+ * the rows of the matrix in their storage order, and bigger
+ * products are computed by blocks of matrix2
+ ****************************************************************/
+public class BlockedBackend extends NaiveBackend {
+
+    // Under this number of multiply-adds, the blocking costs more than it saves
+    public static final long MDOT_BLOCKED_THRESHOLD = 4096;
+
+    // A MDOT_BLOCK_K x MDOT_BLOCK_J block of matrix2 (128 KB) stays in cache
+    // while every row of matrix1 goes through it
+    protected static final int MDOT_BLOCK_K = 64;
+    protected static final int MDOT_BLOCK_J = 256;
+
+
+    @Override
+    public String getName() {
+        return "blocked";
+    }
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2, choosing the kernel
+     * according to the operation size
+     ****************************************************************/
+    @Override
+    public void mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if (matrix1.nbRows == 1) {
+            mDotRowVector(matrix1, matrix2, result);
+        } else if ((long) matrix1.nbRows * matrix1.nbColumns * matrix2.nbColumns < MDOT_BLOCKED_THRESHOLD) {
+            super.mDot(matrix1, matrix2, result);
+        } else {
+            mDotBlocked(matrix1, matrix2, result);
+        }
+    }
+
+    /****************************************************************
+     * Compute result = vector . matrix as the sum of matrix's rows
+     * weighted by vector, which reads matrix in its storage order
+     ****************************************************************/
+    @Override
+    public void mDotRowVector(Matrix vector, Matrix matrix, Matrix result) {
+        final double[] vectorArray = vector.array;
+        final double[] array = matrix.array;
+        final double[] resultArray = result.array;
+        final int nbColumns = matrix.nbColumns;
+
+        result.setZero();
+        for (int k = 0; k<vector.nbColumns; k++) {
+            axpy(vectorArray[vector.offset + k], array, matrix.offset + k*matrix.stride, resultArray, result.offset, nbColumns);
+        }
+    }
+
+    /****************************************************************
+     * Compute result = transpose(matrix1) . matrix2 with a k-i-j
+     * loop : each row k of matrix2, weighted by the elements of row
+     * k of matrix1, is added to every row of the result
+     ****************************************************************/
+    @Override
+    public void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] array1 = matrix1.array;
+        final double[] array2 = matrix2.array;
+        final double[] resultArray = result.array;
+        final int nbColumns = matrix2.nbColumns;
+
+        result.setZero();
+        for (int k = 0; k<matrix1.nbRows; k++) {
+            final int rowStart1 = matrix1.offset + k*matrix1.stride;
+            final int rowStart2 = matrix2.offset + k*matrix2.stride;
+            for (int i = 0; i<matrix1.nbColumns; i++) {
+                axpy(array1[rowStart1 + i], array2, rowStart2, resultArray, result.offset + i*result.stride, nbColumns);
+            }
+        }
+    }
+
+    /****************************************************************
+     * Compute result = matrix1 . transpose(matrix2) : each element
+     * is the dot product of a row of matrix1 and a row of matrix2
+     ****************************************************************/
+    @Override
+    public void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] resultArray = result.array;
+        final int inner = matrix1.nbColumns;
+
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<matrix2.nbRows; j++) {
+                resultArray[resultRowStart+j] = dot(matrix1.array, rowStart1, matrix2.array, matrix2.offset + j*matrix2.stride, inner);
+            }
+        }
+    }
+
+    /****************************************************************
+     * Compute the dot products 4 rows of matrix at a time : each
+     * loaded element of vector is used four times from a register
+     ****************************************************************/
+    @Override
+    public void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        int j = 0;
+        for (; j+4<=nbRows; j += 4) {
+            final int row0 = matrixOffset + j*stride;
+            final int row1 = row0 + stride;
+            final int row2 = row1 + stride;
+            final int row3 = row2 + stride;
+            double sum0 = 0;
+            double sum1 = 0;
+            double sum2 = 0;
+            double sum3 = 0;
+            for (int k = 0; k<length; k++) {
+                final double v = vector[vectorOffset+k];
+                sum0 += v * matrix[row0+k];
+                sum1 += v * matrix[row1+k];
+                sum2 += v * matrix[row2+k];
+                sum3 += v * matrix[row3+k];
+            }
+            result[resultOffset+j] += sum0;
+            result[resultOffset+j+1] += sum1;
+            result[resultOffset+j+2] += sum2;
+            result[resultOffset+j+3] += sum3;
+        }
+        for (; j<nbRows; j++) {
+            result[resultOffset+j] += dot(vector, vectorOffset, matrix, matrixOffset + j*stride, length);
+        }
+    }
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2 with a cache-blocked i-k-j
+     * loop : matrix2 is read by blocks of rows, and four rows of
+     * matrix1 go through each block at once, so every loaded
+     * element of matrix2 is used four times from a register
+     ****************************************************************/
+    protected void mDotBlocked(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] array1 = matrix1.array;
+        final double[] array2 = matrix2.array;
+        final double[] resultArray = result.array;
+        final int nbRows = matrix1.nbRows;
+        final int inner = matrix1.nbColumns;
+        final int nbColumns = matrix2.nbColumns;
+        final int stride1 = matrix1.stride;
+        final int resultStride = result.stride;
+
+        result.setZero();
+
+        for (int kk = 0; kk<inner; kk += MDOT_BLOCK_K) {
+            final int kEnd = Math.min(kk + MDOT_BLOCK_K, inner);
+            for (int jj = 0; jj<nbColumns; jj += MDOT_BLOCK_J) {
+                final int jEnd = Math.min(jj + MDOT_BLOCK_J, nbColumns);
+
+                int i = 0;
+                for (; i+3<nbRows; i += 4) {
+                    final int rowStart1 = matrix1.offset + i*stride1;
+                    final int r0 = result.offset + i*resultStride;
+                    final int r1 = r0 + resultStride;
+                    final int r2 = r1 + resultStride;
+                    final int r3 = r2 + resultStride;
+                    for (int k = kk; k<kEnd; k++) {
+                        final double a0 = array1[rowStart1 + k];
+                        final double a1 = array1[rowStart1 + stride1 + k];
+                        final double a2 = array1[rowStart1 + 2*stride1 + k];
+                        final double a3 = array1[rowStart1 + 3*stride1 + k];
+                        final int rowStart2 = matrix2.offset + k*matrix2.stride;
+                        for (int j = jj; j<jEnd; j++) {
+                            final double b = array2[rowStart2 + j];
+                            resultArray[r0 + j] += a0 * b;
+                            resultArray[r1 + j] += a1 * b;
+                            resultArray[r2 + j] += a2 * b;
+                            resultArray[r3 + j] += a3 * b;
+                        }
+                    }
+                }
+                for (; i<nbRows; i++) {
+                    final int rowStart1 = matrix1.offset + i*stride1;
+                    final int r0 = result.offset + i*resultStride;
+                    for (int k = kk; k<kEnd; k++) {
+                        final double a0 = array1[rowStart1 + k];
+                        final int rowStart2 = matrix2.offset + k*matrix2.stride;
+                        for (int j = jj; j<jEnd; j++) {
+                            resultArray[r0 + j] += a0 * array2[rowStart2 + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
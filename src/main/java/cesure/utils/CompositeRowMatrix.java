@@ -0,0 +1,71 @@
+package cesure.utils;
+
+/****************************************************************
+ * A row vector made of several row matrices put end to end,
+ * without copying them : it sees every later change of its
+ * segments
+ ****************************************************************/
+public class CompositeRowMatrix {
+
+    public final Matrix[] segments;
+    public final int nbColumns;
+
+    public CompositeRowMatrix(Matrix... segments) {
+        int nbColumns = 0;
+        for (Matrix segment : segments) {
+            if (!segment.isRowMatrix()) {
+                throw new MatrixError("CompositeRowMatrix(Matrix...) - segment["+segment.nbRows+","+segment.nbColumns+"]");
+            }
+            nbColumns += segment.nbColumns;
+        }
+        this.segments = segments;
+        this.nbColumns = nbColumns;
+    }
+
+    /****************************************************************
+     * Return a new composite with more segments at its end
+     * @param matrices The row matrices to append
+     * @return The new composite, sharing this one's segments
+     ****************************************************************/
+    public CompositeRowMatrix append(Matrix... matrices) {
+        final Matrix[] newSegments = new Matrix[segments.length + matrices.length];
+        System.arraycopy(segments, 0, newSegments, 0, segments.length);
+        System.arraycopy(matrices, 0, newSegments, segments.length, matrices.length);
+        return new CompositeRowMatrix(newSegments);
+    }
+
+    public double get(int i) {
+        if (i < 0 || i >= nbColumns) {throw new MatrixError("CompositeRowMatrix.get(int) - "+i+" "+nbColumns);}
+        for (Matrix segment : segments) {
+            if (i < segment.nbColumns) {
+                return segment.array[segment.offset + i];
+            }
+            i -= segment.nbColumns;
+        }
+        throw new MatrixError("CompositeRowMatrix.get(int)");
+    }
+
+    /****************************************************************
+     * Copy the segments into a new row matrix
+     * @return The new row matrix
+     ****************************************************************/
+    public Matrix toMatrix() {
+        final Matrix result = new Matrix(1, nbColumns);
+        int column = 0;
+        for (Matrix segment : segments) {
+            System.arraycopy(segment.array, segment.offset, result.array, column, segment.nbColumns);
+            column += segment.nbColumns;
+        }
+        return result;
+    }
+
+    // True when a segment is backed by the array
+    public boolean reads(double[] array) {
+        for (Matrix segment : segments) {
+            if (segment.array == array) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
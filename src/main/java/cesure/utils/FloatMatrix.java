@@ -0,0 +1,182 @@
+package cesure.utils;
+
+import java.io.Serializable;
+
+/****************************************************************
+ * Single precision matrix, with the same row-major layout as
+ * Matrix : used to run trained networks with half the memory
+ * traffic, and twice the SIMD lanes, of Matrix
+ ****************************************************************/
+public class FloatMatrix implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public int nbRows;
+    public int nbColumns;
+    public int length;
+
+    // Row-major storage : element (row,col) is at array[offset + row*stride + col]
+    public float[] array;
+    public int offset;
+    public int stride;
+
+
+
+    public FloatMatrix(int nbRows, int nbColumns) {
+        this.nbRows = nbRows;
+        this.nbColumns = nbColumns;
+        length = nbRows * nbColumns;
+        array = new float[length];
+        offset = 0;
+        stride = nbColumns;
+    }
+
+    /****************************************************************
+     * Wrap an existing row-major array without copying it
+     * @param array The backing array
+     * @param offset The index of the element (0,0) in the array
+     * @param nbRows The number of rows
+     * @param nbColumns The number of columns
+     * @param stride The distance between two rows in the array
+     ****************************************************************/
+    public FloatMatrix(float[] array, int offset, int nbRows, int nbColumns, int stride) {
+        if (nbRows < 0 || nbColumns < 0 || offset < 0 || stride < nbColumns
+                || (nbRows > 0 && offset + (nbRows-1)*stride + nbColumns > array.length)) {
+            throw new MatrixError("FloatMatrix(float[],int,int,int,int)");
+        }
+        this.nbRows = nbRows;
+        this.nbColumns = nbColumns;
+        this.length = nbRows * nbColumns;
+        this.array = array;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /****************************************************************
+     * Copy a double precision matrix, rounding every element
+     * @param matrix The matrix to copy
+     ****************************************************************/
+    public FloatMatrix(Matrix matrix) {
+        this(matrix.nbRows, matrix.nbColumns);
+        for (int i = 0; i<nbRows; i++) {
+            final int rowStart = matrix.offset + i*matrix.stride;
+            final int newRowStart = i*nbColumns;
+            for (int j = 0; j<nbColumns; j++) {
+                array[newRowStart+j] = (float) matrix.array[rowStart+j];
+            }
+        }
+    }
+
+    public static FloatMatrix newRowMatrix(int size) {
+        return new FloatMatrix(1, size);
+    }
+
+    public Matrix toMatrix() {
+        final Matrix matrix = new Matrix(nbRows, nbColumns);
+        for (int i = 0; i<nbRows; i++) {
+            final int rowStart = offset + i*stride;
+            final int newRowStart = i*nbColumns;
+            for (int j = 0; j<nbColumns; j++) {
+                matrix.array[newRowStart+j] = array[rowStart+j];
+            }
+        }
+        return matrix;
+    }
+
+    public FloatMatrix cp() {
+        FloatMatrix matrix = new FloatMatrix(nbRows, nbColumns);
+        for (int i = 0; i<nbRows; i++) {
+            System.arraycopy(array, offset + i*stride, matrix.array, i*nbColumns, nbColumns);
+        }
+        return matrix;
+    }
+
+    public boolean isContiguous() {
+        return stride == nbColumns || nbRows <= 1;
+    }
+
+    public boolean isRowMatrix() {
+        return nbRows == 1;
+    }
+
+    /****************************************************************
+     * Return a view on a block of this matrix : the view shares this
+     * matrix's array, so writing in one writes in the other
+     ****************************************************************/
+    public FloatMatrix view(int firstRow, int firstColumn, int nbRows, int nbColumns) {
+        if (firstRow < 0 || firstColumn < 0 || nbRows < 0 || nbColumns < 0
+                || firstRow + nbRows > this.nbRows || firstColumn + nbColumns > this.nbColumns) {
+            throw new MatrixError("FloatMatrix.view(int,int,int,int)");
+        }
+        return new FloatMatrix(array, offset + firstRow*stride + firstColumn, nbRows, nbColumns, stride);
+    }
+
+
+    public float get(int row, int col) {
+        if (row < 0 || row >= nbRows || col < 0 || col >= nbColumns) {throw new MatrixError("FloatMatrix.get(int,int)");}
+        return array[offset + row*stride + col];
+    }
+
+    public float get(int i) {
+        if (i < 0 || i >= length) {throw new MatrixError("FloatMatrix.get(int)");}
+        return array[offset + (i/nbColumns)*stride + i%nbColumns];
+    }
+
+    public void set(int row, int col, float value) {
+        if (row < 0 || row >= nbRows || col < 0 || col >= nbColumns) {throw new MatrixError("FloatMatrix.set(int,int,float)");}
+        array[offset + row*stride + col] = value;
+    }
+
+    public void set(int i, float value) {
+        if (i < 0 || i >= length) {throw new MatrixError("FloatMatrix.set(int,float)");}
+        array[offset + (i/nbColumns)*stride + i%nbColumns] = value;
+    }
+
+    public void setZero() {
+        for (int i = 0; i<nbRows; i++) {
+            final int rowStart = offset + i*stride;
+            for (int j = 0; j<nbColumns; j++) {
+                array[rowStart+j] = 0;
+            }
+        }
+    }
+
+
+    public void print() {
+        toMatrix().print();
+    }
+
+
+    public FloatMatrix add(FloatMatrix matrix) {
+        if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("FloatMatrix.add(FloatMatrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            MatrixKernels.add(array, offset + i*stride, matrix.array, matrix.offset + i*matrix.stride, nbColumns);
+        }
+        return this;
+    }
+
+    public FloatMatrix substract(FloatMatrix matrix) {
+        if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("FloatMatrix.substract(FloatMatrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            MatrixKernels.substract(array, offset + i*stride, matrix.array, matrix.offset + i*matrix.stride, nbColumns);
+        }
+        return this;
+    }
+
+    public FloatMatrix pMult(FloatMatrix matrix) {
+        if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("FloatMatrix.pMult(FloatMatrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            MatrixKernels.pMult(array, offset + i*stride, matrix.array, matrix.offset + i*matrix.stride, nbColumns);
+        }
+        return this;
+    }
+
+    public double avg() {
+        double sum = 0;
+        for (int i = 0; i<nbRows; i++) {
+            sum += MatrixKernels.sum(array, offset + i*stride, nbColumns);
+        }
+        return sum / length;
+    }
+
+}
@@ -0,0 +1,134 @@
+package cesure.utils;
+
+
+public class FloatMatrixMath {
+
+    public static FloatMatrix FloatMatrix_substract(FloatMatrix matrix1, FloatMatrix matrix2) {
+        return FloatMatrix_substract(matrix1, matrix2, new FloatMatrix(matrix1.nbRows, matrix1.nbColumns));
+    }
+
+    public static FloatMatrix FloatMatrix_substract(FloatMatrix matrix1, FloatMatrix matrix2, FloatMatrix result) {
+        if (matrix1.nbColumns != matrix2.nbColumns || matrix1.nbRows != matrix2.nbRows) {
+            throw new MatrixError("FloatMatrix_substract(FloatMatrix,FloatMatrix,FloatMatrix) - "
+                    +matrix1.nbRows+" "+matrix1.nbColumns+" "
+                    +matrix2.nbRows+" "+matrix2.nbColumns);
+        }
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "FloatMatrix_substract(FloatMatrix,FloatMatrix,FloatMatrix)");
+
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int rowStart2 = matrix2.offset + i*matrix2.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] - matrix2.array[rowStart2+j];
+            }
+        }
+        return result;
+    }
+
+    // mean of matrix1 - matrix2, without allocating their difference
+    public static double FloatMatrix_meanDifference(FloatMatrix matrix1, FloatMatrix matrix2) {
+        checkSameShape(matrix1, matrix2, "FloatMatrix_meanDifference(FloatMatrix,FloatMatrix)");
+        double sum = 0;
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            sum += MatrixKernels.sumDifference(matrix1.array, matrix1.offset + i*matrix1.stride,
+                    matrix2.array, matrix2.offset + i*matrix2.stride, matrix1.nbColumns);
+        }
+        return sum / matrix1.length;
+    }
+
+    // mean of |matrix1 - matrix2|, without allocating their difference
+    public static double FloatMatrix_meanAbsDifference(FloatMatrix matrix1, FloatMatrix matrix2) {
+        checkSameShape(matrix1, matrix2, "FloatMatrix_meanAbsDifference(FloatMatrix,FloatMatrix)");
+        double sum = 0;
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            sum += MatrixKernels.sumAbsDifference(matrix1.array, matrix1.offset + i*matrix1.stride,
+                    matrix2.array, matrix2.offset + i*matrix2.stride, matrix1.nbColumns);
+        }
+        return sum / matrix1.length;
+    }
+
+    public static FloatMatrix FloatMatrix_pMult(FloatMatrix matrix1, FloatMatrix matrix2) {
+        return FloatMatrix_pMult(matrix1, matrix2, new FloatMatrix(matrix1.nbRows, matrix1.nbColumns));
+    }
+
+    public static FloatMatrix FloatMatrix_pMult(FloatMatrix matrix1, FloatMatrix matrix2, FloatMatrix result) {
+        if (matrix1.nbColumns != matrix2.nbColumns || matrix1.nbRows != matrix2.nbRows) {
+            throw new MatrixError("FloatMatrix_pMult(FloatMatrix,FloatMatrix,FloatMatrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "FloatMatrix_pMult(FloatMatrix,FloatMatrix,FloatMatrix)");
+
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int rowStart2 = matrix2.offset + i*matrix2.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] * matrix2.array[rowStart2+j];
+            }
+        }
+        return result;
+    }
+
+    public static FloatMatrix FloatMatrix_mDot(FloatMatrix matrix1, FloatMatrix matrix2) {
+        return FloatMatrix_mDot(matrix1, matrix2, new FloatMatrix(matrix1.nbRows, matrix2.nbColumns));
+    }
+
+    public static FloatMatrix FloatMatrix_mDot(FloatMatrix matrix1, FloatMatrix matrix2, FloatMatrix result) {
+        if (matrix1.nbColumns != matrix2.nbRows) {
+            throw new MatrixError("FloatMatrix_mDot(FloatMatrix,FloatMatrix,FloatMatrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+        checkResult(result, matrix1.nbRows, matrix2.nbColumns, "FloatMatrix_mDot(FloatMatrix,FloatMatrix,FloatMatrix)");
+        if (result.array == matrix1.array || result.array == matrix2.array) {
+            throw new MatrixError("FloatMatrix_mDot(FloatMatrix,FloatMatrix,FloatMatrix) - result can't share an input array");
+        }
+
+        MatrixKernels.mDot(matrix1, matrix2, result);
+        return result;
+    }
+
+    public static FloatMatrix FloatMatrix_affine(FloatMatrix matrix, FloatMatrix weights, FloatMatrix bias, FloatMatrix result) {
+        if (matrix.nbColumns != weights.nbRows || !bias.isRowMatrix() || bias.nbColumns != weights.nbColumns) {
+            throw new MatrixError("FloatMatrix_affine(FloatMatrix,FloatMatrix,FloatMatrix,FloatMatrix) - m["+matrix.nbRows+","+matrix.nbColumns+"] "
+                    +"w["+weights.nbRows+","+weights.nbColumns+"] b["+bias.nbRows+","+bias.nbColumns+"]");
+        }
+        checkResult(result, matrix.nbRows, weights.nbColumns, "FloatMatrix_affine(FloatMatrix,FloatMatrix,FloatMatrix,FloatMatrix)");
+        if (result.array == matrix.array || result.array == weights.array || result.array == bias.array) {
+            throw new MatrixError("FloatMatrix_affine(FloatMatrix,FloatMatrix,FloatMatrix,FloatMatrix) - result can't share an input array");
+        }
+
+        MatrixKernels.affine(matrix, weights, bias, result);
+        return result;
+    }
+
+    public static FloatMatrix FloatMatrix_concatenateRowMatrix(final FloatMatrix matrixLeft, final FloatMatrix matrixRight) {
+        return FloatMatrix_concatenateRowMatrix(matrixLeft, matrixRight, new FloatMatrix(1, matrixLeft.nbColumns+matrixRight.nbColumns));
+    }
+
+    public static FloatMatrix FloatMatrix_concatenateRowMatrix(final FloatMatrix matrixLeft, final FloatMatrix matrixRight, final FloatMatrix result) {
+        if (!matrixLeft.isRowMatrix() || !matrixRight.isRowMatrix()) {
+            throw new MatrixError("FloatMatrix_concatenateRowMatrix(FloatMatrix,FloatMatrix,FloatMatrix)");
+        }
+        checkResult(result, 1, matrixLeft.nbColumns+matrixRight.nbColumns, "FloatMatrix_concatenateRowMatrix(FloatMatrix,FloatMatrix,FloatMatrix)");
+
+        System.arraycopy(matrixLeft.array, matrixLeft.offset, result.array, result.offset, matrixLeft.nbColumns);
+        System.arraycopy(matrixRight.array, matrixRight.offset, result.array, result.offset+matrixLeft.nbColumns, matrixRight.nbColumns);
+        return result;
+    }
+
+
+    private static void checkSameShape(final FloatMatrix matrix1, final FloatMatrix matrix2, final String method) {
+        if (matrix1.nbRows != matrix2.nbRows || matrix1.nbColumns != matrix2.nbColumns) {
+            throw new MatrixError(method+" - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+    }
+
+    private static void checkResult(final FloatMatrix result, final int nbRows, final int nbColumns, final String method) {
+        if (result.nbRows != nbRows || result.nbColumns != nbColumns) {
+            throw new MatrixError(method+" - result["+result.nbRows+","+result.nbColumns+"] "
+                    +"expected["+nbRows+","+nbColumns+"]");
+        }
+    }
+}
@@ -1,16 +1,23 @@
 package cesure.utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Random;
-
-import static cesure.utils.RandomUtils.random;
+import java.util.random.RandomGenerator;
 
 public class Matrix implements Serializable {
 
+    // The serialVersionUID computed for the class before the flat storage, so older saves still load
+    private static final long serialVersionUID = 8728102316228606486L;
+
     public int nbRows;
     public int nbColumns;
     public int length;
-    public double[][] array;
+
+    // Row-major storage : element (row,col) is at array[offset + row*stride + col]
+    public double[] array;
+    public int offset;
+    public int stride;
 
 
 
@@ -18,19 +25,62 @@ public class Matrix implements Serializable {
         this.nbRows = nbRows;
         this.nbColumns = nbColumns;
         length = nbRows * nbColumns;
-        array = new double[nbRows][nbColumns];
+        array = new double[length];
+        offset = 0;
+        stride = nbColumns;
     }
 
     public Matrix(double[][] values) {
-        nbRows = values.length;
-        nbColumns = values[0].length;
-        length = nbRows * nbColumns;
-        array = new double[nbRows][nbColumns];
+        this(values.length, values[0].length);
         for (int i = 0; i< nbRows; i++) {
             if (values[i].length != nbColumns) { throw new MatrixError("Matrix(double[][])"); }
-            for (int j = 0; j< nbColumns; j++) {
-                this.array[i][j] = values[i][j];
+            System.arraycopy(values[i], 0, array, i*nbColumns, nbColumns);
+        }
+    }
+
+    /****************************************************************
+     * Wrap an existing row-major array without copying it
+     * @param array The backing array
+     * @param offset The index of the element (0,0) in the array
+     * @param nbRows The number of rows
+     * @param nbColumns The number of columns
+     * @param stride The distance between two rows in the array
+     ****************************************************************/
+    public Matrix(double[] array, int offset, int nbRows, int nbColumns, int stride) {
+        if (nbRows < 0 || nbColumns < 0 || offset < 0 || stride < nbColumns
+                || (nbRows > 0 && offset + (nbRows-1)*stride + nbColumns > array.length)) {
+            throw new MatrixError("Matrix(double[],int,int,int,int)");
+        }
+        this.nbRows = nbRows;
+        this.nbColumns = nbColumns;
+        this.length = nbRows * nbColumns;
+        this.array = array;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /****************************************************************
+     * Load a matrix, also in the form saved before the flat
+     * storage : one array per row
+     ****************************************************************/
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        nbRows = fields.get("nbRows", 0);
+        nbColumns = fields.get("nbColumns", 0);
+        length = fields.get("length", 0);
+        final Object savedArray = fields.get("array", null);
+        if (savedArray instanceof double[][]) {
+            final double[][] rows = (double[][]) savedArray;
+            array = new double[length];
+            for (int i = 0; i<nbRows; i++) {
+                System.arraycopy(rows[i], 0, array, i*nbColumns, nbColumns);
             }
+            offset = 0;
+            stride = nbColumns;
+        } else {
+            array = (double[]) savedArray;
+            offset = fields.get("offset", 0);
+            stride = fields.get("stride", 0);
         }
     }
 
@@ -40,9 +90,7 @@ public class Matrix implements Serializable {
 
     public static Matrix newRowMatrix(double... values) {
         Matrix matrix = new Matrix(1, values.length);
-        for (int i=0; i<values.length; i++) {
-            matrix.array[0][i] = values[i];
-        }
+        System.arraycopy(values, 0, matrix.array, 0, values.length);
         return matrix;
     }
 
@@ -52,24 +100,61 @@ public class Matrix implements Serializable {
 
     public static Matrix newColumnMatrix(double[] values) {
         Matrix matrix = new Matrix(values.length, 1);
-        for (int i=0; i<values.length; i++) {
-            matrix.array[i][0] = values[i];
-        }
+        System.arraycopy(values, 0, matrix.array, 0, values.length);
         return matrix;
     }
 
     public static Matrix newRandomMatrix(int nbRows, int nbColumns, double min, double max) {
         Matrix matrix = new Matrix(nbRows,nbColumns);
-        for (int row=0; row<nbRows; row++) {
-            for (int col=0; col<nbColumns; col++) {
-                matrix.array[row][col] = random(min,max);
+        RandomUtils.fillUniform(RandomUtils.current(), matrix.array, 0, matrix.length, min, max);
+        return matrix;
+    }
+
+    public Matrix cp() {
+        Matrix matrix = new Matrix(nbRows, nbColumns);
+        if (isContiguous()) {
+            System.arraycopy(array, offset, matrix.array, 0, length);
+        } else {
+            for (int i = 0; i<nbRows; i++) {
+                System.arraycopy(array, offset + i*stride, matrix.array, i*nbColumns, nbColumns);
             }
         }
         return matrix;
     }
 
-    public Matrix cp() {
-        return new Matrix(array);
+    /****************************************************************
+     * Copy this matrix into a matrix of the same shape
+     * @param result The matrix receiving the copy
+     * @return result
+     ****************************************************************/
+    public Matrix cp(Matrix result) {
+        if (result.nbRows != nbRows || result.nbColumns != nbColumns) {
+            throw new MatrixError("cp(Matrix) - ["+nbRows+","+nbColumns+"] result["+result.nbRows+","+result.nbColumns+"]");
+        }
+        // An empty view may start past the end of its array
+        if (length == 0) {
+            return result;
+        }
+        if (isContiguous() && result.isContiguous()) {
+            System.arraycopy(array, offset, result.array, result.offset, length);
+        } else {
+            for (int i = 0; i<nbRows; i++) {
+                System.arraycopy(array, offset + i*stride, result.array, result.offset + i*result.stride, nbColumns);
+            }
+        }
+        return result;
+    }
+
+    /****************************************************************
+     * @return True if the elements are stored in one contiguous
+     * block of the backing array
+     ****************************************************************/
+    public boolean isContiguous() {
+        return stride == nbColumns || nbRows <= 1;
+    }
+
+    public int index(int row, int col) {
+        return offset + row*stride + col;
     }
 
     public boolean isRowMatrix() {
@@ -83,9 +168,10 @@ public class Matrix implements Serializable {
     public boolean isVector() { return isRowMatrix() || isColumnMatrix(); }
 
     public boolean isZero() {
-        for (double[] row : array) {
-            for (double val : row) {
-                if (val != 0) {
+        for (int i = 0; i<nbRows; i++) {
+            final int rowStart = offset + i*stride;
+            for (int j = 0; j<nbColumns; j++) {
+                if (array[rowStart+j] != 0) {
                     return false;
                 }
             }
@@ -96,67 +182,87 @@ public class Matrix implements Serializable {
 
     public Matrix getRow(int row) {
         if (row < 0 || row > nbRows-1) { throw new MatrixError("getRow(int"); }
-        return newRowMatrix(array[row]);
+        Matrix matrix = new Matrix(1, nbColumns);
+        System.arraycopy(array, offset + row*stride, matrix.array, 0, nbColumns);
+        return matrix;
+    }
+
+    /****************************************************************
+     * Return a view on a block of this matrix : the view shares this
+     * matrix's array, so writing in one writes in the other
+     * @param firstRow The first row of the block
+     * @param firstColumn The first column of the block
+     * @param nbRows The number of rows of the block
+     * @param nbColumns The number of columns of the block
+     * @return The view
+     ****************************************************************/
+    public Matrix view(int firstRow, int firstColumn, int nbRows, int nbColumns) {
+        if (firstRow < 0 || firstColumn < 0 || nbRows < 0 || nbColumns < 0
+                || firstRow + nbRows > this.nbRows || firstColumn + nbColumns > this.nbColumns) {
+            throw new MatrixError("view(int,int,int,int)");
+        }
+        return new Matrix(array, offset + firstRow*stride + firstColumn, nbRows, nbColumns, stride);
     }
 
     public Matrix getColumn(int col) {
         if (col < 0 || col > nbColumns-1) { throw new MatrixError("getColumn(int"); }
-        double[] newArray = new double[nbRows];
+        Matrix matrix = new Matrix(nbRows, 1);
         for (int i=0; i<nbRows; i++) {
-            newArray[i] = array[i][col];
+            matrix.array[i] = array[offset + i*stride + col];
         }
-        return newColumnMatrix(newArray);
+        return matrix;
     }
 
 
     public double get(int row, int col) {
         if (row < 0 || row >= nbRows || col < 0 || col >= nbColumns) {throw new MatrixError("get(int,int)");}
-        return array[row][col];
+        return array[offset + row*stride + col];
     }
 
     public double get(int i) {
         if (i < 0 || i >= length) {throw new MatrixError("get(int)");}
-        return array[i%nbRows][i/nbColumns];
+        return array[offset + (i/nbColumns)*stride + i%nbColumns];
     }
 
     public void set(int i, double value) {
         if (i < 0 || i >= length) {
             throw new MatrixError("set(int,double)");
         }
-        array[i%nbRows][i/nbColumns] = value;
+        array[offset + (i/nbColumns)*stride + i%nbColumns] = value;
     }
 
     public void set(int row, int column, double value) {
         if (row>=0 && row < nbRows && column >= 0 && column < nbColumns) {
-            array[row][column] = value;
+            array[offset + row*stride + column] = value;
         } else {throw new MatrixError("set(int,int,double)");}
     }
 
     public void setRandom(double min, double max) {
+        setRandom(RandomUtils.current(), min, max);
+    }
+    public void setRandom(RandomGenerator rand, double min, double max) {
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] = random(min, max);
-            }
+            RandomUtils.fillUniform(rand, array, offset + i*stride, nbColumns, min, max);
         }
     }
-    public void randomize(double minChange, double maxChange) {
+    public void setGaussian(RandomGenerator rand, double stdDeviation) {
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] += random(minChange, maxChange);
-            }
+            RandomUtils.fillGaussian(rand, array, offset + i*stride, nbColumns, stdDeviation);
         }
     }
-    public void randomize(Random rand, double minChange, double maxChange) {
+    public void randomize(double minChange, double maxChange) {
+        randomize(RandomUtils.current(), minChange, maxChange);
+    }
+    public void randomize(RandomGenerator rand, double minChange, double maxChange) {
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] += random(rand, minChange, maxChange);
-            }
+            RandomUtils.perturb(rand, array, offset + i*stride, nbColumns, minChange, maxChange);
         }
     }
     public void setZero() {
         for (int i = 0; i< nbRows; i++) {
+            final int rowStart = offset + i*stride;
             for (int j = 0; j< nbColumns; j++) {
-                array[i][j] = 0;
+                array[rowStart+j] = 0;
             }
         }
     }
@@ -166,10 +272,11 @@ public class Matrix implements Serializable {
     public void print() {
         for (int row = 0; row< nbRows; row++) {
             for (int column = 0; column< nbColumns; column++) {
-                if (array[row][column] == 0) {
+                final double value = array[offset + row*stride + column];
+                if (value == 0) {
                     System.out.print("0");
                 } else {
-                    System.out.print(array[row][column]);
+                    System.out.print(value);
                 }
                 if (column < nbColumns -1) {System.out.print(", ");}
             }
@@ -183,20 +290,27 @@ public class Matrix implements Serializable {
 
 
     public Matrix transpose() {
-        double[][] newarray = new double[nbColumns][nbRows];
+        double[] newArray = new double[length];
         for (int i = 0; i<nbRows; i++) {
+            final int rowStart = offset + i*stride;
             for (int j = 0; j<nbColumns; j++) {
-                newarray[j][i] = array[i][j];
+                newArray[j*nbRows + i] = array[rowStart+j];
             }
         }
-        array = newarray;
+        final int newNbRows = nbColumns;
+        nbColumns = nbRows;
+        nbRows = newNbRows;
+        array = newArray;
+        offset = 0;
+        stride = nbColumns;
         return this;
     }
 
     public Matrix pow(double pow) {
-        for (int rowI=0; rowI<nbRows; rowI++) {
-          for (int colI=0; colI<nbColumns; colI++) {
-                array[rowI][colI] = Math.pow(array[rowI][colI], pow);
+        for (int i = 0; i<nbRows; i++) {
+            final int rowStart = offset + i*stride;
+            for (int j = 0; j<nbColumns; j++) {
+                array[rowStart+j] = Math.pow(array[rowStart+j], pow);
             }
         }
         return this;
@@ -204,41 +318,48 @@ public class Matrix implements Serializable {
 
     public Matrix add(int row, int col, double value) {
         if (row < 0 || row >= nbRows || col < 0 || col >= nbColumns) {throw new MatrixError("get(int,int)");}
-        array[row][col] += value;
+        array[offset + row*stride + col] += value;
         return this;
     }
 
     public Matrix add(Matrix matrix) {
         if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("add(Matrix"); }
+        if (isContiguous() && matrix.isContiguous()) {
+            MatrixKernels.add(array, offset, matrix.array, matrix.offset, length);
+            return this;
+        }
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] += matrix.array[i][j];
-            }
+            MatrixKernels.add(array, offset + i*stride, matrix.array, matrix.offset + i*matrix.stride, nbColumns);
         }
         return this;
     }
     public Matrix substract(Matrix matrix) {
         if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("substract(Matrix"); }
+        if (isContiguous() && matrix.isContiguous()) {
+            MatrixKernels.substract(array, offset, matrix.array, matrix.offset, length);
+            return this;
+        }
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] -= matrix.array[i][j];
-            }
+            MatrixKernels.substract(array, offset + i*stride, matrix.array, matrix.offset + i*matrix.stride, nbColumns);
         }
         return this;
     }
 
     public Matrix mult(double a) {
+        if (isContiguous()) {
+            MatrixKernels.mult(array, offset, length, a);
+            return this;
+        }
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] *= a;
-            }
+            MatrixKernels.mult(array, offset + i*stride, nbColumns, a);
         }
         return this;
     }
     public Matrix div(double a) {
         for (int i = 0; i< nbRows; i++) {
+            final int rowStart = offset + i*stride;
             for (int j = 0; j< nbColumns; j++) {
-                array[i][j] /= a;
+                array[rowStart+j] /= a;
             }
         }
         return this;
@@ -248,10 +369,12 @@ public class Matrix implements Serializable {
             throw new MatrixError("pMult(Matrix) - m1[" + nbRows + "," + nbColumns + "] "
                     + "m2[" + matrix.nbRows + "," + matrix.nbColumns + "]");
         }
+        if (isContiguous() && matrix.isContiguous()) {
+            MatrixKernels.pMult(array, offset, matrix.array, matrix.offset, length);
+            return this;
+        }
         for (int i = 0; i< nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                array[i][j] *= matrix.array[i][j];
-            }
+            MatrixKernels.pMult(array, offset + i*stride, matrix.array, matrix.offset + i*matrix.stride, nbColumns);
         }
         return this;
     }
@@ -261,24 +384,36 @@ public class Matrix implements Serializable {
             throw new MatrixError("mDot(Matrix,Matrix) - m1["+nbRows+","+nbColumns+"] "
                     +"m2["+matrix.nbRows+","+matrix.nbColumns+"]");
         }
-        double[][] newArray = new double[nbRows][matrix.nbColumns];
-        for (int i = 0; i<nbRows; i++) {
-            for (int j = 0; j<matrix.nbColumns; j++) {
-                for (int k = 0; k<nbColumns; k++) {
-                    newArray[i][j] += array[i][k] * matrix.array[k][j];
-                }
-            }
-        }
-        array = newArray;
+        final Matrix result = new Matrix(nbRows, matrix.nbColumns);
+        MatrixKernels.mDot(this, matrix, result);
+        array = result.array;
+        nbColumns = result.nbColumns;
+        length = nbRows * nbColumns;
+        offset = 0;
+        stride = nbColumns;
         return this;
     }
 
+    /****************************************************************
+     * Start a lazy element-wise expression on this matrix : chains
+     * like m.expr().substract(m2).pMult(m3).evaluate(result) are
+     * computed in one pass, without temporary matrices
+     ****************************************************************/
+    public MatrixExpression expr() {
+        return MatrixExpression.of(this);
+    }
+
     public double vDot(Matrix matrix) {
         if (!isVector() || !matrix.isVector() || length != matrix.length) {throw new MatrixError("vDot(Matrix)");}
 
+        final int step = isRowMatrix() ? 1 : stride;
+        final int step2 = matrix.isRowMatrix() ? 1 : matrix.stride;
+        if (step == 1 && step2 == 1) {
+            return MatrixKernels.dot(array, offset, matrix.array, matrix.offset, length);
+        }
         double result = 0;
         for (int i = 0; i<length; i++) {
-            result += array[i][0] * matrix.array[i][0];
+            result += array[offset + i*step] * matrix.array[matrix.offset + i*step2];
         }
         return result;
     }
@@ -287,8 +422,9 @@ public class Matrix implements Serializable {
 
     public Matrix gradient() {
         for (int i = 0; i< nbRows; i++) {
+            final int rowStart = offset + i*stride;
             for (int j = 0; j< nbColumns; j++) {
-                array[i][j] *= 1 - array[i][j];
+                array[rowStart+j] *= 1 - array[rowStart+j];
             }
         }
         return this;
@@ -296,9 +432,11 @@ public class Matrix implements Serializable {
 
     public double avg() {
         double moyenne = 0;
-        for (int i=0; i<nbRows; i++) {
-            for (int j = 0; j< nbColumns; j++) {
-                moyenne += array[i][j];
+        if (isContiguous()) {
+            moyenne = MatrixKernels.sum(array, offset, length);
+        } else {
+            for (int i=0; i<nbRows; i++) {
+                moyenne += MatrixKernels.sum(array, offset + i*stride, nbColumns);
             }
         }
         moyenne = moyenne / length;
@@ -308,14 +446,11 @@ public class Matrix implements Serializable {
     public Matrix deleteLastColumn() {
         if (nbColumns < 1) {throw new MatrixError("deleteLastColumn() - "+nbColumns);}
 
-        final double newMatrix[][] = new double[nbRows][nbColumns - 1];
+        final Matrix matrix = new Matrix(nbRows, nbColumns - 1);
         for (int row = 0; row < nbRows; row++) {
-            for (int col = 0; col < nbColumns-1; col++) {
-                newMatrix[row][col] = array[row][col];
-            }
+            System.arraycopy(array, offset + row*stride, matrix.array, row*matrix.nbColumns, matrix.nbColumns);
         }
-
-        return new Matrix(newMatrix);
+        return matrix;
     }
 
 }
\ No newline at end of file
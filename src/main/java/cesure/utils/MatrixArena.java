@@ -0,0 +1,124 @@
+package cesure.utils;
+
+import java.util.Arrays;
+
+/****************************************************************
+ * Scratch matrices for the temporaries of a computation, owned
+ * by one thread : get() returns the current thread's arena
+ *
+ * The matrices handed out since mark() are all taken back by
+ * reset(mark), and are handed out again by the next requests of
+ * the same shape. A loop repeating the same computation between
+ * mark() and reset() allocates only on its first turn
+ *
+ * The content of a scratch matrix is undefined, and it must not
+ * be used anymore after the reset() of its scope
+ ****************************************************************/
+public final class MatrixArena {
+
+    private static final ThreadLocal<MatrixArena> ARENAS = ThreadLocal.withInitial(MatrixArena::new);
+
+    // The matrices [0, top) are handed out, the ones [top, nbMatrices) are free
+    private Matrix[] matrices = new Matrix[16];
+    private int nbMatrices;
+    private int top;
+
+    private FloatMatrix[] floatMatrices = new FloatMatrix[16];
+    private int nbFloatMatrices;
+    private int floatTop;
+
+    private MatrixArena() {
+    }
+
+    /****************************************************************
+     * Return the arena of the current thread
+     ****************************************************************/
+    public static MatrixArena get() {
+        return ARENAS.get();
+    }
+
+
+    /****************************************************************
+     * Start a scope
+     * @return The mark to give to reset() at the end of the scope
+     ****************************************************************/
+    public long mark() {
+        return ((long) top << 32) | floatTop;
+    }
+
+    /****************************************************************
+     * End a scope : take back every matrix handed out since mark
+     * @param mark The value returned by mark() at the start of the
+     *             scope
+     ****************************************************************/
+    public void reset(long mark) {
+        final int markTop = (int) (mark >>> 32);
+        final int markFloatTop = (int) mark;
+        if (markTop > top || markFloatTop > floatTop) {
+            throw new MatrixError("MatrixArena.reset(long) - "+markTop+" "+top+" "+markFloatTop+" "+floatTop);
+        }
+        top = markTop;
+        floatTop = markFloatTop;
+    }
+
+
+    /****************************************************************
+     * Hand out a scratch matrix, with an undefined content
+     * @param nbRows The number of rows
+     * @param nbColumns The number of columns
+     * @return A matrix of this shape, owned until the next reset()
+     *         of the current scope
+     ****************************************************************/
+    public Matrix matrix(int nbRows, int nbColumns) {
+        // In a repeated computation, the first free matrix already has the right shape
+        for (int i = top; i<nbMatrices; i++) {
+            final Matrix matrix = matrices[i];
+            if (matrix.nbRows == nbRows && matrix.nbColumns == nbColumns) {
+                matrices[i] = matrices[top];
+                matrices[top++] = matrix;
+                return matrix;
+            }
+        }
+        if (nbMatrices == matrices.length) {
+            matrices = Arrays.copyOf(matrices, 2*nbMatrices);
+        }
+        final Matrix matrix = new Matrix(nbRows, nbColumns);
+        matrices[nbMatrices++] = matrices[top];
+        matrices[top++] = matrix;
+        return matrix;
+    }
+
+    public Matrix rowMatrix(int nbColumns) {
+        return matrix(1, nbColumns);
+    }
+
+    /****************************************************************
+     * Single precision version of matrix()
+     ****************************************************************/
+    public FloatMatrix floatMatrix(int nbRows, int nbColumns) {
+        for (int i = floatTop; i<nbFloatMatrices; i++) {
+            final FloatMatrix matrix = floatMatrices[i];
+            if (matrix.nbRows == nbRows && matrix.nbColumns == nbColumns) {
+                floatMatrices[i] = floatMatrices[floatTop];
+                floatMatrices[floatTop++] = matrix;
+                return matrix;
+            }
+        }
+        if (nbFloatMatrices == floatMatrices.length) {
+            floatMatrices = Arrays.copyOf(floatMatrices, 2*nbFloatMatrices);
+        }
+        final FloatMatrix matrix = new FloatMatrix(nbRows, nbColumns);
+        floatMatrices[nbFloatMatrices++] = floatMatrices[floatTop];
+        floatMatrices[floatTop++] = matrix;
+        return matrix;
+    }
+
+    public FloatMatrix floatRowMatrix(int nbColumns) {
+        return floatMatrix(1, nbColumns);
+    }
+
+    // Number of matrices owned by the arena, handed out or not
+    public int size() {
+        return nbMatrices + nbFloatMatrices;
+    }
+}
@@ -0,0 +1,99 @@
+package cesure.utils;
+
+/****************************************************************
+ * The kernels behind Matrix and MatrixMath : the one in use is
+ * given by MatrixBackends.get()
+ * They don't check the shapes, this is the caller's job
+ ****************************************************************/
+public interface MatrixBackend {
+
+    // The name used by -Dcesure.backend and the calibration cache
+    String getName();
+
+
+    /****************************************************************
+     * GEMM : result = matrix1 . matrix2
+     * result doesn't share its array with an input
+     ****************************************************************/
+    void mDot(Matrix matrix1, Matrix matrix2, Matrix result);
+
+    /****************************************************************
+     * GEMV : result = vector . matrix, for a row vector
+     * result doesn't share its array with an input
+     ****************************************************************/
+    void mDotRowVector(Matrix vector, Matrix matrix, Matrix result);
+
+    /****************************************************************
+     * result = transpose(matrix1) . matrix2, reading matrix1 as it
+     * is stored
+     * result doesn't share its array with an input
+     ****************************************************************/
+    void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result);
+
+    /****************************************************************
+     * result = matrix1 . transpose(matrix2), reading matrix2 as it
+     * is stored
+     * result doesn't share its array with an input
+     ****************************************************************/
+    void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result);
+
+    /****************************************************************
+     * Transposed GEMV : result[resultOffset+j] += the dot product of
+     * vector[vectorOffset...] and the row j of the nbRows rows of
+     * length elements starting at matrix[matrixOffset], stride apart
+     * result doesn't share its array with an input
+     ****************************************************************/
+    void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                        double[] result, int resultOffset, int nbRows);
+
+
+    /****************************************************************
+     * Element-wise ops and reductions : each one works on length
+     * consecutive elements starting at the given offsets
+     ****************************************************************/
+
+    // a += b
+    void add(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // a -= b
+    void substract(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // a *= b
+    void pMult(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // a *= value
+    void mult(double[] a, int aOffset, int length, double value);
+
+    // y += alpha * x
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+
+    // sum of a[i] * b[i]
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // sum of a[i]
+    double sum(double[] a, int aOffset, int length);
+
+    // sum of a[i] - b[i]
+    double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // sum of |a[i] - b[i]|
+    double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // sum of (a[i] - b[i])^2
+    double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    // number of i where only one of a[i] and b[i] is above threshold
+    int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold);
+
+
+    /****************************************************************
+     * Softsign kernels of the activation functions : result may be x
+     * at the same offset
+     ****************************************************************/
+
+    // result = shift + scale * x/(1+|x|)
+    void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale);
+
+    // result = scale / (1+|x|)^2, the derivative of softsign(x, shift, scale)
+    void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale);
+}
@@ -0,0 +1,368 @@
+package cesure.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/****************************************************************
+ * Chooses the MatrixBackend used by Matrix and MatrixMath :
+ *  - -Dcesure.backend=naive|blocked|simd|parallel|blas forces a
+ *    backend
+ *  - -Dcesure.backend=auto, the default, times the available
+ *    backends on the shapes of the Cesure gates and keeps the
+ *    fastest one for each class of shapes. The result is saved in
+ *    -Dcesure.backend.cache, ~/.cesure/backend.properties by
+ *    default, and reused while the machine and the JVM don't change
+ *    ("none" calibrates at each run)
+ * The backend is chosen on the first get() : loading this class
+ * neither calibrates nor touches the disk
+ ****************************************************************/
+public class MatrixBackends {
+
+    // Change it when the calibration changes, to invalidate the saved ones
+    private static final int CALIBRATION_VERSION = 5;
+
+    // {rows, inner, columns} of the products timed for each class of TunedBackend
+    // The context gates go 101 -> 90 -> 80 -> 69 -> 59 -> 48 and the output gate
+    // 53 -> 52 -> 51 -> 50 -> 49 -> 48 : a step computes each layer as the dot products
+    // of its input with the rows of the transposed weights
+    private static final int[][] GEMV_SHAPES = {
+            {1, 101, 90}, {1, 90, 80}, {1, 80, 69}, {1, 69, 59}, {1, 59, 48},
+            {1, 53, 52}, {1, 52, 51}, {1, 51, 50}, {1, 50, 49}, {1, 49, 48}};
+    // No gate product is that small, these stand for the small products around them
+    private static final int[][] GEMM_SMALL_SHAPES = {{4, 16, 48}, {8, 12, 32}};
+    // Outer products of the backpropagation, and a few inputs through the first context layer
+    private static final int[][] GEMM_MEDIUM_SHAPES = {{102, 1, 90}, {54, 1, 52}, {16, 102, 90}};
+    // Many inputs through the first context layer
+    private static final int[][] GEMM_LARGE_SHAPES = {{256, 102, 90}};
+    // The widths of the gate layers
+    private static final int[] ELEMENTWISE_LENGTHS = {48, 53, 59, 69, 80, 90, 102};
+
+    // Each timing first runs for WARMUP_NANOS and until WARMUP_OPERATIONS multiply-adds or
+    // element operations are done, at most MAX_WARMUP_NANOS, for the JIT : the Vector API kernels
+    // are only fast once C2 compiled them, after thousands of calls. Then it keeps the best of
+    // MEASURES measures of at least MEASURE_NANOS
+    private static final long WARMUP_NANOS = 10_000_000;
+    private static final long WARMUP_OPERATIONS = 100_000_000;
+    private static final long MAX_WARMUP_NANOS = 1_000_000_000;
+    private static final long MEASURE_NANOS = 2_000_000;
+    private static final int MEASURES = 5;
+
+    // Initialized on the first get() only
+    private static class Holder {
+        private static final MatrixBackend BACKEND = select();
+    }
+
+
+    public static MatrixBackend get() {
+        return Holder.BACKEND;
+    }
+
+    /****************************************************************
+     * Create the backend named name : naive, blocked, simd, parallel
+     * or blas (both on top of simd when available, else blocked)
+     ****************************************************************/
+    public static MatrixBackend byName(String name) {
+        switch (name) {
+            case "naive":
+                return new NaiveBackend();
+            case "blocked":
+                return new BlockedBackend();
+            case "simd":
+                if (!MatrixKernels.SIMD) {
+                    throw new MatrixError("MatrixBackends.byName(String) - simd needs --add-modules jdk.incubator.vector");
+                }
+                return new SimdBackend();
+            case "parallel":
+                return new ParallelBackend(MatrixKernels.SIMD ? new SimdBackend() : new BlockedBackend());
+            case "blas":
+                if (!BlasBackend.AVAILABLE) {
+                    throw new MatrixError("MatrixBackends.byName(String) - blas needs --add-modules jdk.incubator.foreign, --enable-native-access=ALL-UNNAMED and a CBLAS library");
+                }
+                return new BlasBackend(MatrixKernels.SIMD ? new SimdBackend() : new BlockedBackend());
+            default:
+                throw new MatrixError("MatrixBackends.byName(String) - unknown backend "+name);
+        }
+    }
+
+    /****************************************************************
+     * Create every backend usable in this JVM
+     ****************************************************************/
+    public static List<MatrixBackend> available() {
+        final List<MatrixBackend> backends = new ArrayList<>();
+        backends.add(byName("naive"));
+        backends.add(byName("blocked"));
+        if (MatrixKernels.SIMD) {
+            backends.add(byName("simd"));
+        }
+        backends.add(byName("parallel"));
+        if (BlasBackend.AVAILABLE) {
+            backends.add(byName("blas"));
+        }
+        return backends;
+    }
+
+    /****************************************************************
+     * Time the available backends and keep the fastest one for
+     * each class of shapes : it takes a few seconds
+     ****************************************************************/
+    public static TunedBackend calibrate() {
+        final List<MatrixBackend> candidates = available();
+        // Under their thresholds, the parallel and blas backends only hand the work to a
+        // sequential Java one, and blas only reaches its threshold from the medium products
+        final List<MatrixBackend> mediums = new ArrayList<>(candidates);
+        mediums.removeIf(backend -> backend instanceof ParallelBackend);
+        final List<MatrixBackend> sequentials = new ArrayList<>(mediums);
+        sequentials.removeIf(backend -> backend instanceof BlasBackend);
+
+        final Random random = new Random(0);
+        return new TunedBackend(
+                fastestGemv(sequentials, random),
+                fastestMDot(sequentials, GEMM_SMALL_SHAPES, random),
+                fastestMDot(mediums, GEMM_MEDIUM_SHAPES, random),
+                fastestMDot(candidates, GEMM_LARGE_SHAPES, random),
+                fastestElementWise(sequentials, random));
+    }
+
+
+    private static MatrixBackend select() {
+        final String name = System.getProperty("cesure.backend", "auto");
+        if (!"auto".equals(name)) {
+            return byName(name);
+        }
+
+        final String cache = System.getProperty("cesure.backend.cache",
+                System.getProperty("user.home") + File.separator + ".cesure" + File.separator + "backend.properties");
+        if ("none".equals(cache)) {
+            return calibrate();
+        }
+        TunedBackend tuned = load(cache);
+        if (tuned == null) {
+            tuned = calibrate();
+            save(cache, tuned);
+        }
+        return tuned;
+    }
+
+    private static MatrixBackend fastestMDot(List<MatrixBackend> candidates, int[][] shapes, Random random) {
+        final Matrix[] matrices1 = new Matrix[shapes.length];
+        final Matrix[] matrices2 = new Matrix[shapes.length];
+        final Matrix[] results = new Matrix[shapes.length];
+        long operations = 0;
+        for (int s = 0; s<shapes.length; s++) {
+            operations += (long) shapes[s][0] * shapes[s][1] * shapes[s][2];
+            matrices1[s] = randomMatrix(shapes[s][0], shapes[s][1], random);
+            matrices2[s] = randomMatrix(shapes[s][1], shapes[s][2], random);
+            results[s] = new Matrix(shapes[s][0], shapes[s][2]);
+        }
+
+        MatrixBackend fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        for (final MatrixBackend candidate : candidates) {
+            final long time = measure(() -> {
+                for (int s = 0; s<shapes.length; s++) {
+                    candidate.mDot(matrices1[s], matrices2[s], results[s]);
+                }
+            }, operations);
+            if (time < fastestTime) {
+                fastest = candidate;
+                fastestTime = time;
+            }
+        }
+        return fastest;
+    }
+
+    // The gates' transposed products, and row vector products on the same shapes for the rest of the code
+    private static MatrixBackend fastestGemv(List<MatrixBackend> candidates, Random random) {
+        final Matrix[] vectors = new Matrix[GEMV_SHAPES.length];
+        final Matrix[] matrices = new Matrix[GEMV_SHAPES.length];
+        final Matrix[] transposed = new Matrix[GEMV_SHAPES.length];
+        final Matrix[] results = new Matrix[GEMV_SHAPES.length];
+        long operations = 0;
+        for (int s = 0; s<GEMV_SHAPES.length; s++) {
+            operations += 2L * GEMV_SHAPES[s][1] * GEMV_SHAPES[s][2];
+            vectors[s] = randomMatrix(1, GEMV_SHAPES[s][1], random);
+            matrices[s] = randomMatrix(GEMV_SHAPES[s][1], GEMV_SHAPES[s][2], random);
+            transposed[s] = MatrixMath.Matrix_transpose(matrices[s]);
+            results[s] = new Matrix(1, GEMV_SHAPES[s][2]);
+        }
+
+        MatrixBackend fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        for (final MatrixBackend candidate : candidates) {
+            final long time = measure(() -> {
+                for (int s = 0; s<GEMV_SHAPES.length; s++) {
+                    final Matrix result = results[s];
+                    result.setZero();
+                    candidate.accumulateDots(vectors[s].array, 0, vectors[s].nbColumns, transposed[s].array, 0, transposed[s].stride,
+                            result.array, 0, transposed[s].nbRows);
+                    candidate.mDotRowVector(vectors[s], matrices[s], result);
+                }
+            }, operations);
+            if (time < fastestTime) {
+                fastest = candidate;
+                fastestTime = time;
+            }
+        }
+        return fastest;
+    }
+
+    private static MatrixBackend fastestElementWise(List<MatrixBackend> candidates, Random random) {
+        final Matrix[] vectors1 = new Matrix[ELEMENTWISE_LENGTHS.length];
+        final Matrix[] vectors2 = new Matrix[ELEMENTWISE_LENGTHS.length];
+        final Matrix[] vectors3 = new Matrix[ELEMENTWISE_LENGTHS.length];
+        for (int s = 0; s<ELEMENTWISE_LENGTHS.length; s++) {
+            vectors1[s] = randomMatrix(1, ELEMENTWISE_LENGTHS[s], random);
+            vectors2[s] = randomMatrix(1, ELEMENTWISE_LENGTHS[s], random);
+            vectors3[s] = new Matrix(1, ELEMENTWISE_LENGTHS[s]);
+        }
+        final double[] ones = new double[ELEMENTWISE_LENGTHS[ELEMENTWISE_LENGTHS.length-1]];
+        Arrays.fill(ones, 1);
+        final double[] sink = new double[1];
+        long operations = 0;
+        for (final int length : ELEMENTWISE_LENGTHS) {
+            operations += 14L * length;
+        }
+
+        MatrixBackend fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        for (final MatrixBackend candidate : candidates) {
+            final long time = measure(() -> {
+                for (int s = 0; s<ELEMENTWISE_LENGTHS.length; s++) {
+                    final double[] a = vectors1[s].array;
+                    final double[] b = vectors2[s].array;
+                    final int length = ELEMENTWISE_LENGTHS[s];
+                    // a keeps its values, so the timings don't drift
+                    candidate.add(a, 0, b, 0, length);
+                    candidate.substract(a, 0, b, 0, length);
+                    candidate.axpy(0.5, b, 0, a, 0, length);
+                    candidate.axpy(-0.5, b, 0, a, 0, length);
+                    candidate.pMult(a, 0, ones, 0, length);
+                    candidate.mult(a, 0, length, 1);
+                    candidate.softsign(b, 0, vectors3[s].array, 0, length, 0.5, -0.5);
+                    candidate.softsignDerivative(b, 0, vectors3[s].array, 0, length, -0.5);
+                    sink[0] += candidate.dot(a, 0, b, 0, length) + candidate.sum(a, 0, length);
+                    sink[0] += candidate.sumDifference(a, 0, b, 0, length) + candidate.sumAbsDifference(a, 0, b, 0, length)
+                            + candidate.sumSquaredDifference(a, 0, b, 0, length) + candidate.countThresholdMismatches(a, 0, b, 0, length, 0.5);
+                }
+            }, operations);
+            if (time < fastestTime) {
+                fastest = candidate;
+                fastestTime = time;
+            }
+        }
+        return fastest;
+    }
+
+    private static Matrix randomMatrix(int nbRows, int nbColumns, Random random) {
+        final Matrix matrix = new Matrix(nbRows, nbColumns);
+        for (int i = 0; i<matrix.length; i++) {
+            matrix.array[i] = random.nextDouble()*2 - 1;
+        }
+        return matrix;
+    }
+
+    // Nanoseconds per run of operation, which does the given number of operations
+    private static long measure(Runnable operation, long operations) {
+        final long warmupStart = System.nanoTime();
+        long elapsed;
+        long warmupRuns = 0;
+        do {
+            operation.run();
+            warmupRuns++;
+            elapsed = System.nanoTime() - warmupStart;
+        } while ((elapsed < WARMUP_NANOS || warmupRuns * operations < WARMUP_OPERATIONS) && elapsed < MAX_WARMUP_NANOS);
+
+        long best = Long.MAX_VALUE;
+        for (int m = 0; m<MEASURES; m++) {
+            final long start = System.nanoTime();
+            long now;
+            long runs = 0;
+            do {
+                operation.run();
+                runs++;
+                now = System.nanoTime();
+            } while (now - start < MEASURE_NANOS);
+            best = Math.min(best, (now - start) / runs);
+        }
+        return best;
+    }
+
+
+    /****************************************************************
+     * The calibration cache
+     ****************************************************************/
+
+    private static String fingerprint() {
+        return CALIBRATION_VERSION
+                +" "+System.getProperty("os.arch")
+                +" "+Runtime.getRuntime().availableProcessors()
+                +" "+System.getProperty("java.vm.name")
+                +" "+System.getProperty("java.vm.version")
+                +(MatrixKernels.SIMD ? " simd" : "")
+                +(BlasBackend.AVAILABLE ? " blas" : "");
+    }
+
+    private static TunedBackend load(String filename) {
+        final File file = new File(filename);
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!fingerprint().equals(properties.getProperty("fingerprint"))) {
+            return null;
+        }
+
+        final List<MatrixBackend> candidates = available();
+        final MatrixBackend gemv = find(candidates, properties.getProperty("gemv"));
+        final MatrixBackend gemmSmall = find(candidates, properties.getProperty("gemm.small"));
+        final MatrixBackend gemmMedium = find(candidates, properties.getProperty("gemm.medium"));
+        final MatrixBackend gemmLarge = find(candidates, properties.getProperty("gemm.large"));
+        final MatrixBackend elementWise = find(candidates, properties.getProperty("elementwise"));
+        if (gemv == null || gemmSmall == null || gemmMedium == null || gemmLarge == null || elementWise == null) {
+            return null;
+        }
+        return new TunedBackend(gemv, gemmSmall, gemmMedium, gemmLarge, elementWise);
+    }
+
+    private static MatrixBackend find(List<MatrixBackend> candidates, String name) {
+        for (final MatrixBackend candidate : candidates) {
+            if (candidate.getName().equals(name)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static void save(String filename, TunedBackend tuned) {
+        final Properties properties = new Properties();
+        properties.setProperty("fingerprint", fingerprint());
+        properties.setProperty("gemv", tuned.gemv.getName());
+        properties.setProperty("gemm.small", tuned.gemmSmall.getName());
+        properties.setProperty("gemm.medium", tuned.gemmMedium.getName());
+        properties.setProperty("gemm.large", tuned.gemmLarge.getName());
+        properties.setProperty("elementwise", tuned.elementWise.getName());
+
+        final File file = new File(filename);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        // Like load(), fail silently : the next run calibrates again
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "MatrixBackends calibration");
+        } catch (IOException e) {
+            return;
+        }
+    }
+}
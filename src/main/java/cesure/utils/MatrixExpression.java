@@ -0,0 +1,269 @@
+package cesure.utils;
+
+import java.util.function.DoubleUnaryOperator;
+
+/****************************************************************
+ * A lazy element-wise expression on matrices of the same shape,
+ * started by Matrix.expr() : nothing is computed until evaluate()
+ *
+ * The evaluation goes once through the matrices, by chunks of a
+ * few hundred elements that stay in cache, and every operator of
+ * the expression runs on each chunk with the MatrixKernels
+ *
+ * An expression keeps its chunk buffers, so it can be evaluated
+ * again but only by one thread at a time
+ ****************************************************************/
+public abstract class MatrixExpression {
+
+    // Number of elements computed at once by each operator
+    private static final int CHUNK = 256;
+
+    public final int nbRows;
+    public final int nbColumns;
+
+    // Chunk buffers, allocated at the first evaluation that needs them : one
+    // for the result when it is also an operand, and one for the right operand
+    private double[] resultChunk;
+    private double[] operandChunk;
+
+    private MatrixExpression(int nbRows, int nbColumns) {
+        this.nbRows = nbRows;
+        this.nbColumns = nbColumns;
+    }
+
+    static MatrixExpression of(Matrix matrix) {
+        return new Leaf(matrix);
+    }
+
+
+    /****************************************************************
+     * Write the elements [column, column+length) of row into
+     * out[outOffset, outOffset+length)
+     ****************************************************************/
+    abstract void evaluate(int row, int column, int length, double[] out, int outOffset);
+
+    // True when the expression reads the array
+    abstract boolean reads(double[] array);
+
+
+    public MatrixExpression add(Matrix matrix) { return add(new Leaf(matrix)); }
+    public MatrixExpression add(MatrixExpression expression) {
+        return new Binary(this, expression, Binary.ADD, "add(MatrixExpression)");
+    }
+
+    public MatrixExpression substract(Matrix matrix) { return substract(new Leaf(matrix)); }
+    public MatrixExpression substract(MatrixExpression expression) {
+        return new Binary(this, expression, Binary.SUBSTRACT, "substract(MatrixExpression)");
+    }
+
+    public MatrixExpression pMult(Matrix matrix) { return pMult(new Leaf(matrix)); }
+    public MatrixExpression pMult(MatrixExpression expression) {
+        return new Binary(this, expression, Binary.PMULT, "pMult(MatrixExpression)");
+    }
+
+    public MatrixExpression div(Matrix matrix) { return div(new Leaf(matrix)); }
+    public MatrixExpression div(MatrixExpression expression) {
+        return new Binary(this, expression, Binary.DIVIDE, "div(MatrixExpression)");
+    }
+
+    public MatrixExpression add(double value) {
+        return new Scalar(this, value, Scalar.ADD);
+    }
+
+    public MatrixExpression mult(double value) {
+        return new Scalar(this, value, Scalar.MULT);
+    }
+
+    public MatrixExpression map(DoubleUnaryOperator function) {
+        return new Map(this, function);
+    }
+
+
+    /****************************************************************
+     * Compute the expression into a new matrix
+     ****************************************************************/
+    public Matrix evaluate() {
+        return evaluate(new Matrix(nbRows, nbColumns));
+    }
+
+    /****************************************************************
+     * Compute the expression into result, which may be one of its
+     * operands
+     ****************************************************************/
+    public Matrix evaluate(Matrix result) {
+        if (result.nbRows != nbRows || result.nbColumns != nbColumns) {
+            throw new MatrixError("MatrixExpression.evaluate(Matrix) - result["+result.nbRows+","+result.nbColumns+"] "
+                    +"expected["+nbRows+","+nbColumns+"]");
+        }
+        // An operand overwritten before being read must go through the chunk buffer
+        final boolean direct = !reads(result.array);
+        if (!direct && resultChunk == null) {
+            resultChunk = new double[CHUNK];
+        }
+        final double[] buffer = resultChunk;
+
+        for (int i = 0; i<nbRows; i++) {
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<nbColumns; j += CHUNK) {
+                final int length = Math.min(CHUNK, nbColumns - j);
+                if (direct) {
+                    evaluate(i, j, length, result.array, resultRowStart + j);
+                } else {
+                    evaluate(i, j, length, buffer, 0);
+                    System.arraycopy(buffer, 0, result.array, resultRowStart + j, length);
+                }
+            }
+        }
+        return result;
+    }
+
+    double[] operandChunk() {
+        if (operandChunk == null) {
+            operandChunk = new double[CHUNK];
+        }
+        return operandChunk;
+    }
+
+
+
+    private static class Leaf extends MatrixExpression {
+
+        private final Matrix matrix;
+
+        private Leaf(Matrix matrix) {
+            super(matrix.nbRows, matrix.nbColumns);
+            this.matrix = matrix;
+        }
+
+        @Override
+        void evaluate(int row, int column, int length, double[] out, int outOffset) {
+            System.arraycopy(matrix.array, matrix.offset + row*matrix.stride + column, out, outOffset, length);
+        }
+
+        @Override
+        boolean reads(double[] array) {
+            return matrix.array == array;
+        }
+    }
+
+    private static class Binary extends MatrixExpression {
+
+        private static final int ADD = 0;
+        private static final int SUBSTRACT = 1;
+        private static final int PMULT = 2;
+        private static final int DIVIDE = 3;
+
+        private final MatrixExpression left;
+        private final MatrixExpression right;
+        private final int operator;
+
+        private Binary(MatrixExpression left, MatrixExpression right, int operator, String method) {
+            super(left.nbRows, left.nbColumns);
+            if (left.nbRows != right.nbRows || left.nbColumns != right.nbColumns) {
+                throw new MatrixError("MatrixExpression."+method+" - m1["+left.nbRows+","+left.nbColumns+"] "
+                        +"m2["+right.nbRows+","+right.nbColumns+"]");
+            }
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        void evaluate(int row, int column, int length, double[] out, int outOffset) {
+            left.evaluate(row, column, length, out, outOffset);
+
+            // A matrix operand is read in place, anything else is computed in the chunk buffer
+            final double[] operand;
+            final int operandOffset;
+            if (right instanceof Leaf) {
+                final Matrix matrix = ((Leaf) right).matrix;
+                operand = matrix.array;
+                operandOffset = matrix.offset + row*matrix.stride + column;
+            } else {
+                operand = operandChunk();
+                operandOffset = 0;
+                right.evaluate(row, column, length, operand, 0);
+            }
+
+            switch (operator) {
+                case ADD:
+                    MatrixKernels.add(out, outOffset, operand, operandOffset, length);
+                    break;
+                case SUBSTRACT:
+                    MatrixKernels.substract(out, outOffset, operand, operandOffset, length);
+                    break;
+                case PMULT:
+                    MatrixKernels.pMult(out, outOffset, operand, operandOffset, length);
+                    break;
+                default:
+                    for (int i = 0; i<length; i++) {
+                        out[outOffset+i] /= operand[operandOffset+i];
+                    }
+            }
+        }
+
+        @Override
+        boolean reads(double[] array) {
+            return left.reads(array) || right.reads(array);
+        }
+    }
+
+    private static class Scalar extends MatrixExpression {
+
+        private static final int ADD = 0;
+        private static final int MULT = 1;
+
+        private final MatrixExpression expression;
+        private final double value;
+        private final int operator;
+
+        private Scalar(MatrixExpression expression, double value, int operator) {
+            super(expression.nbRows, expression.nbColumns);
+            this.expression = expression;
+            this.value = value;
+            this.operator = operator;
+        }
+
+        @Override
+        void evaluate(int row, int column, int length, double[] out, int outOffset) {
+            expression.evaluate(row, column, length, out, outOffset);
+            if (operator == MULT) {
+                MatrixKernels.mult(out, outOffset, length, value);
+            } else {
+                for (int i = 0; i<length; i++) {
+                    out[outOffset+i] += value;
+                }
+            }
+        }
+
+        @Override
+        boolean reads(double[] array) {
+            return expression.reads(array);
+        }
+    }
+
+    private static class Map extends MatrixExpression {
+
+        private final MatrixExpression expression;
+        private final DoubleUnaryOperator function;
+
+        private Map(MatrixExpression expression, DoubleUnaryOperator function) {
+            super(expression.nbRows, expression.nbColumns);
+            this.expression = expression;
+            this.function = function;
+        }
+
+        @Override
+        void evaluate(int row, int column, int length, double[] out, int outOffset) {
+            expression.evaluate(row, column, length, out, outOffset);
+            for (int i = 0; i<length; i++) {
+                out[outOffset+i] = function.applyAsDouble(out[outOffset+i]);
+            }
+        }
+
+        @Override
+        boolean reads(double[] array) {
+            return expression.reads(array);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package cesure.utils;
+
+/****************************************************************
+ * Raw kernels used by Matrix and MatrixMath
+ * They don't check the shapes, this is the caller's job
+ * The double precision ones are those of MatrixBackends.get()
+ ****************************************************************/
+public class MatrixKernels {
+
+    // True when the SIMD kernels of VectorKernels can be used : the JVM must be
+    // started with --add-modules jdk.incubator.vector, and -Dcesure.simd=false disables them
+    public static final boolean SIMD = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !"false".equals(System.getProperty("cesure.simd"));
+
+
+    /****************************************************************
+     * Double precision kernels : they go to the backend chosen by
+     * MatrixBackends
+     ****************************************************************/
+
+    // result = matrix1 . matrix2
+    public static void mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        MatrixBackends.get().mDot(matrix1, matrix2, result);
+    }
+
+    // result = vector . matrix, one weighted row of matrix per element of vector
+    public static void mDot(CompositeRowMatrix vector, Matrix matrix, Matrix result) {
+        result.setZero();
+        int row = 0;
+        for (Matrix segment : vector.segments) {
+            accumulateRows(segment.array, segment.offset, segment.nbColumns, matrix, row, result.array, result.offset);
+            row += segment.nbColumns;
+        }
+    }
+
+    // result = vector . matrix + bias : result starts from bias, then gets one
+    // weighted row of matrix per element of vector
+    public static void affine(CompositeRowMatrix vector, Matrix matrix, Matrix bias, Matrix result) {
+        System.arraycopy(bias.array, bias.offset, result.array, result.offset, result.nbColumns);
+        int row = 0;
+        for (Matrix segment : vector.segments) {
+            accumulateRows(segment.array, segment.offset, segment.nbColumns, matrix, row, result.array, result.offset);
+            row += segment.nbColumns;
+        }
+    }
+
+    // result = vector . matrix, only reading the rows of vector's non-zero elements
+    public static void mDot(SparseRowMatrix vector, Matrix matrix, Matrix result) {
+        result.setZero();
+        accumulateRows(vector, matrix, 0, result);
+    }
+
+    // result += vector . the rows firstRow... of matrix : the rows of vector's zero elements are skipped
+    public static void accumulateRows(SparseRowMatrix vector, Matrix matrix, int firstRow, Matrix result) {
+        final MatrixBackend backend = MatrixBackends.get();
+        final int[] indices = vector.indices;
+        final double[] values = vector.values;
+        for (int k = 0; k<indices.length; k++) {
+            backend.axpy(values[k], matrix.array, matrix.offset + (firstRow + indices[k])*matrix.stride,
+                    result.array, result.offset, matrix.nbColumns);
+        }
+    }
+
+    // result = matrix1 . matrix2 + bias on every row
+    public static void affine(Matrix matrix1, Matrix matrix2, Matrix bias, Matrix result) {
+        if (matrix1.nbRows == 1) {
+            System.arraycopy(bias.array, bias.offset, result.array, result.offset, result.nbColumns);
+            accumulateRows(matrix1.array, matrix1.offset, matrix1.nbColumns, matrix2, 0, result.array, result.offset);
+            return;
+        }
+        final MatrixBackend backend = MatrixBackends.get();
+        backend.mDot(matrix1, matrix2, result);
+        for (int i = 0; i<result.nbRows; i++) {
+            backend.add(result.array, result.offset + i*result.stride, bias.array, bias.offset, result.nbColumns);
+        }
+    }
+
+    // result = vector . transpose(weightsT) + bias : weightsT holds one row of weights per
+    // output, so each output is a dot product of contiguous rows
+    public static void affineTransposed(CompositeRowMatrix vector, Matrix weightsT, Matrix bias, Matrix result) {
+        affineTransposed(vector, weightsT, 0, bias, result);
+    }
+
+    // Same as affineTransposed(CompositeRowMatrix,Matrix,Matrix,Matrix), with vector matching
+    // the columns firstColumn... of weightsT : the columns before are folded into bias
+    public static void affineTransposed(CompositeRowMatrix vector, Matrix weightsT, int firstColumn, Matrix bias, Matrix result) {
+        System.arraycopy(bias.array, bias.offset, result.array, result.offset, result.nbColumns);
+        int column = firstColumn;
+        for (Matrix segment : vector.segments) {
+            accumulateDots(segment.array, segment.offset, segment.nbColumns,
+                    weightsT.array, weightsT.offset + column, weightsT.stride, result.array, result.offset, weightsT.nbRows);
+            column += segment.nbColumns;
+        }
+    }
+
+    // result = vector . transpose(matrix), each element a dot product with a row of matrix
+    public static void mDotTranspose(CompositeRowMatrix vector, Matrix matrix, Matrix result) {
+        result.setZero();
+        int column = 0;
+        for (Matrix segment : vector.segments) {
+            accumulateDots(segment.array, segment.offset, segment.nbColumns,
+                    matrix.array, matrix.offset + column, matrix.stride, result.array, result.offset, matrix.nbRows);
+            column += segment.nbColumns;
+        }
+    }
+
+    // result = matrix . transpose(weightsT) + bias on every row
+    public static void affineTransposed(Matrix matrix, Matrix weightsT, Matrix bias, Matrix result) {
+        for (int i = 0; i<matrix.nbRows; i++) {
+            final int resultRowStart = result.offset + i*result.stride;
+            System.arraycopy(bias.array, bias.offset, result.array, resultRowStart, result.nbColumns);
+            accumulateDots(matrix.array, matrix.offset + i*matrix.stride, matrix.nbColumns,
+                    weightsT.array, weightsT.offset, weightsT.stride, result.array, resultRowStart, weightsT.nbRows);
+        }
+    }
+
+    // result[resultOffset+j] += vector[vectorOffset...] . the row j of the nbRows rows starting at
+    // matrix[matrixOffset]
+    public static void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                                      double[] result, int resultOffset, int nbRows) {
+        MatrixBackends.get().accumulateDots(vector, vectorOffset, length, matrix, matrixOffset, stride, result, resultOffset, nbRows);
+    }
+
+    // result[resultOffset...] += the rows firstRow... of matrix, weighted by vector[vectorOffset...]
+    private static void accumulateRows(double[] vector, int vectorOffset, int length, Matrix matrix, int firstRow,
+                                       double[] result, int resultOffset) {
+        final MatrixBackend backend = MatrixBackends.get();
+        int row = matrix.offset + firstRow*matrix.stride;
+        for (int k = 0; k<length; k++) {
+            backend.axpy(vector[vectorOffset + k], matrix.array, row, result, resultOffset, matrix.nbColumns);
+            row += matrix.stride;
+        }
+    }
+
+    // result = transpose(matrix1) . matrix2
+    public static void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        MatrixBackends.get().transposeMDot(matrix1, matrix2, result);
+    }
+
+    // result = matrix1 . transpose(matrix2), a row vector matrix1 takes the backend's accumulateDots
+    public static void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if (matrix1.nbRows == 1) {
+            result.setZero();
+            accumulateDots(matrix1.array, matrix1.offset, matrix1.nbColumns,
+                    matrix2.array, matrix2.offset, matrix2.stride, result.array, result.offset, matrix2.nbRows);
+            return;
+        }
+        MatrixBackends.get().mDotTranspose(matrix1, matrix2, result);
+    }
+
+    // a += b
+    public static void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        MatrixBackends.get().add(a, aOffset, b, bOffset, length);
+    }
+
+    // a -= b
+    public static void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        MatrixBackends.get().substract(a, aOffset, b, bOffset, length);
+    }
+
+    // a *= b
+    public static void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        MatrixBackends.get().pMult(a, aOffset, b, bOffset, length);
+    }
+
+    // a *= value
+    public static void mult(double[] a, int aOffset, int length, double value) {
+        MatrixBackends.get().mult(a, aOffset, length, value);
+    }
+
+    // y += alpha * x
+    public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        MatrixBackends.get().axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    // sum of a[i] * b[i]
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return MatrixBackends.get().dot(a, aOffset, b, bOffset, length);
+    }
+
+    // sum of a[i]
+    public static double sum(double[] a, int aOffset, int length) {
+        return MatrixBackends.get().sum(a, aOffset, length);
+    }
+
+
+
+    /****************************************************************
+     * Softsign kernels for the activation functions : branch-free, on
+     * the backend for doubles and with SIMD when available for
+     * floats. result may be x at the same offset
+     ****************************************************************/
+
+    // result = shift + scale * x/(1+|x|)
+    public static void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        MatrixBackends.get().softsign(x, xOffset, result, resultOffset, length, shift, scale);
+    }
+
+    // result = scale / (1+|x|)^2, the derivative of softsign(x, shift, scale)
+    public static void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        MatrixBackends.get().softsignDerivative(x, xOffset, result, resultOffset, length, scale);
+    }
+
+    // result = shift + scale * x/(1+|x|)
+    public static void softsign(float[] x, int xOffset, float[] result, int resultOffset, int length, float shift, float scale) {
+        if (SIMD) {
+            VectorKernels.softsign(x, xOffset, result, resultOffset, length, shift, scale);
+            return;
+        }
+        for (int i = 0; i<length; i++) {
+            final float v = x[xOffset+i];
+            result[resultOffset+i] = shift + scale*(v/(1+Math.abs(v)));
+        }
+    }
+
+
+
+    /****************************************************************
+     * Error reductions of two operands, in one pass and without any
+     * difference array
+     ****************************************************************/
+
+    // sum of a[i] - b[i]
+    public static double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return MatrixBackends.get().sumDifference(a, aOffset, b, bOffset, length);
+    }
+
+    // sum of |a[i] - b[i]|
+    public static double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return MatrixBackends.get().sumAbsDifference(a, aOffset, b, bOffset, length);
+    }
+
+    // sum of (a[i] - b[i])^2
+    public static double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return MatrixBackends.get().sumSquaredDifference(a, aOffset, b, bOffset, length);
+    }
+
+    // number of i where only one of a[i] and b[i] is above threshold
+    public static int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        return MatrixBackends.get().countThresholdMismatches(a, aOffset, b, bOffset, length, threshold);
+    }
+
+
+
+    /****************************************************************
+     * Single precision kernels, for FloatMatrix
+     ****************************************************************/
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2 with an i-k-j loop : for a
+     * row vector matrix1, this is the sum of matrix2's rows weighted
+     * by matrix1
+     ****************************************************************/
+    public static void mDot(FloatMatrix matrix1, FloatMatrix matrix2, FloatMatrix result) {
+        final float[] array1 = matrix1.array;
+        final float[] array2 = matrix2.array;
+        final float[] resultArray = result.array;
+        final int nbColumns = matrix2.nbColumns;
+
+        result.setZero();
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int k = 0; k<matrix1.nbColumns; k++) {
+                axpy(array1[rowStart1 + k], array2, matrix2.offset + k*matrix2.stride, resultArray, resultRowStart, nbColumns);
+            }
+        }
+    }
+
+    // result = matrix1 . matrix2 + bias on every row, with the same loop as mDot
+    public static void affine(FloatMatrix matrix1, FloatMatrix matrix2, FloatMatrix bias, FloatMatrix result) {
+        final float[] array1 = matrix1.array;
+        final float[] array2 = matrix2.array;
+        final float[] resultArray = result.array;
+        final int nbColumns = matrix2.nbColumns;
+
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            System.arraycopy(bias.array, bias.offset, resultArray, resultRowStart, nbColumns);
+            for (int k = 0; k<matrix1.nbColumns; k++) {
+                axpy(array1[rowStart1 + k], array2, matrix2.offset + k*matrix2.stride, resultArray, resultRowStart, nbColumns);
+            }
+        }
+    }
+
+    // a += b
+    public static void add(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (SIMD) {
+            VectorKernels.add(a, aOffset, b, bOffset, length);
+            return;
+        }
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] += b[bOffset+i];
+        }
+    }
+
+    // a -= b
+    public static void substract(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (SIMD) {
+            VectorKernels.substract(a, aOffset, b, bOffset, length);
+            return;
+        }
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] -= b[bOffset+i];
+        }
+    }
+
+    // a *= b
+    public static void pMult(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        if (SIMD) {
+            VectorKernels.pMult(a, aOffset, b, bOffset, length);
+            return;
+        }
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] *= b[bOffset+i];
+        }
+    }
+
+    // y += alpha * x
+    public static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        if (SIMD) {
+            VectorKernels.axpy(alpha, x, xOffset, y, yOffset, length);
+            return;
+        }
+        for (int i = 0; i<length; i++) {
+            y[yOffset+i] += alpha * x[xOffset+i];
+        }
+    }
+
+    // sum of a[i], accumulated in double precision
+    public static double sum(float[] a, int aOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += a[aOffset+i];
+        }
+        return result;
+    }
+
+    // sum of a[i] - b[i], accumulated in double precision
+    public static double sumDifference(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += a[aOffset+i] - b[bOffset+i];
+        }
+        return result;
+    }
+
+    // sum of |a[i] - b[i]|, accumulated in double precision
+    public static double sumAbsDifference(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += Math.abs(a[aOffset+i] - b[bOffset+i]);
+        }
+        return result;
+    }
+
+}
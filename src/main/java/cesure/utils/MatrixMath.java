@@ -4,37 +4,51 @@ package cesure.utils;
 public class MatrixMath {
 
     public static Matrix identity(int size) {
-        double[][] newarray = new double[size][size];
+        Matrix result = new Matrix(size, size);
         for (int i=0; i<size; i++) {
-            for (int j=0; j<size; j++) {
-                newarray[i][j] = (i==j) ? 1 : 0;
-            }
+            result.array[i*size + i] = 1;
         }
-        return new Matrix(newarray);
+        return result;
     }
 
     public static Matrix Matrix_transpose(Matrix matrix) {
-        double[][] newarray = new double[matrix.nbColumns][matrix.nbRows];
+        return Matrix_transpose(matrix, new Matrix(matrix.nbColumns, matrix.nbRows));
+    }
+
+    public static Matrix Matrix_transpose(Matrix matrix, Matrix result) {
+        checkResult(result, matrix.nbColumns, matrix.nbRows, "Matrix_transpose(Matrix,Matrix)");
+        if (result.array == matrix.array) {
+            throw new MatrixError("Matrix_transpose(Matrix,Matrix) - result can't share the input array");
+        }
+        final double[] array = matrix.array;
+        final double[] resultArray = result.array;
         for (int i = 0; i<matrix.nbRows; i++) {
+            final int rowStart = matrix.offset + i*matrix.stride;
             for (int j = 0; j<matrix.nbColumns; j++) {
-                newarray[j][i] = matrix.array[i][j];
+                resultArray[result.offset + j*result.stride + i] = array[rowStart+j];
             }
         }
-        return new Matrix(newarray);
+        return result;
     }
 
     public static Matrix Matrix_add(Matrix matrix1, Matrix matrix2) {
+        return Matrix_add(matrix1, matrix2, new Matrix(matrix1.nbRows, matrix1.nbColumns));
+    }
+
+    public static Matrix Matrix_add(Matrix matrix1, Matrix matrix2, Matrix result) {
         if (matrix1.nbColumns != matrix2.nbColumns || matrix1.nbRows != matrix2.nbRows) {
             throw new MatrixError("Matrix_add(Matrix,Matrix) - "
                     +matrix1.nbRows+" "+matrix1.nbColumns+" "
                     +matrix2.nbRows+" "+matrix2.nbColumns);
         }
-
-        Matrix result = new Matrix(matrix1.nbRows, matrix1.nbColumns);
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "Matrix_add(Matrix,Matrix,Matrix)");
 
         for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int rowStart2 = matrix2.offset + i*matrix2.stride;
+            final int resultRowStart = result.offset + i*result.stride;
             for (int j = 0; j<matrix1.nbColumns; j++) {
-                result.array[i][j] = matrix1.array[i][j] + matrix2.array[i][j];
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] + matrix2.array[rowStart2+j];
             }
         }
         return result;
@@ -44,51 +58,72 @@ public class MatrixMath {
         Matrix result = new Matrix(matrix1.nbRows, matrix1.nbColumns);
 
         for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = i*result.stride;
             for (int j = 0; j<matrix1.nbColumns; j++) {
-                result.array[i][j] = matrix1.array[i][j] + value;
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] + value;
             }
         }
         return result;
     }
 
     public static Matrix Matrix_substract(Matrix matrix1, Matrix matrix2) {
+        return Matrix_substract(matrix1, matrix2, new Matrix(matrix1.nbRows, matrix1.nbColumns));
+    }
+
+    public static Matrix Matrix_substract(Matrix matrix1, Matrix matrix2, Matrix result) {
         if (matrix1.nbColumns != matrix2.nbColumns || matrix1.nbRows != matrix2.nbRows) {
             throw new MatrixError("Matrix_substract(Matrix,Matrix) - "
                     +matrix1.nbRows+" "+matrix1.nbColumns+" "
                     +matrix2.nbRows+" "+matrix2.nbColumns);
         }
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "Matrix_substract(Matrix,Matrix,Matrix)");
 
-        Matrix result = new Matrix(matrix1.nbRows, matrix1.nbColumns);
         for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int rowStart2 = matrix2.offset + i*matrix2.stride;
+            final int resultRowStart = result.offset + i*result.stride;
             for (int j = 0; j<matrix1.nbColumns; j++) {
-                result.array[i][j] = matrix1.array[i][j] - matrix2.array[i][j];
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] - matrix2.array[rowStart2+j];
             }
         }
         return result;
     }
 
     public static Matrix Matrix_mult(Matrix matrix1, double value) {
-        Matrix result = new Matrix(matrix1.nbRows, matrix1.nbColumns);
+        return Matrix_mult(matrix1, value, new Matrix(matrix1.nbRows, matrix1.nbColumns));
+    }
+
+    public static Matrix Matrix_mult(Matrix matrix1, double value, Matrix result) {
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "Matrix_mult(Matrix,double,Matrix)");
 
         for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
             for (int j = 0; j<matrix1.nbColumns; j++) {
-                result.array[i][j] = matrix1.array[i][j] * value;
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] * value;
             }
         }
         return result;
     }
 
     public static Matrix Matrix_pMult(Matrix matrix1, Matrix matrix2) {
+        return Matrix_pMult(matrix1, matrix2, new Matrix(matrix1.nbRows, matrix1.nbColumns));
+    }
+
+    public static Matrix Matrix_pMult(Matrix matrix1, Matrix matrix2, Matrix result) {
         if (matrix1.nbColumns != matrix2.nbColumns || matrix1.nbRows != matrix2.nbRows) {
             throw new MatrixError("Matrix_pMult(Matrix,Matrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
                     +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
         }
-
-        Matrix result = new Matrix(matrix1.nbRows, matrix1.nbColumns);
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "Matrix_pMult(Matrix,Matrix,Matrix)");
 
         for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int rowStart2 = matrix2.offset + i*matrix2.stride;
+            final int resultRowStart = result.offset + i*result.stride;
             for (int j = 0; j<matrix1.nbColumns; j++) {
-                result.array[i][j] = matrix1.array[i][j] * matrix2.array[i][j];
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] * matrix2.array[rowStart2+j];
             }
         }
         return result;
@@ -102,130 +137,341 @@ public class MatrixMath {
         Matrix result = new Matrix(matrix1.nbRows, matrix1.nbColumns);
 
         for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int rowStart2 = matrix2.offset + i*matrix2.stride;
+            final int resultRowStart = i*result.stride;
             for (int j = 0; j<matrix1.nbColumns; j++) {
-                result.array[i][j] = matrix1.array[i][j] / matrix2.array[i][j];
+                result.array[resultRowStart+j] = matrix1.array[rowStart1+j] / matrix2.array[rowStart2+j];
             }
         }
         return result;
     }
 
     public static Matrix Matrix_mDot(Matrix matrix1, Matrix matrix2) {
+        return Matrix_mDot(matrix1, matrix2, new Matrix(matrix1.nbRows, matrix2.nbColumns));
+    }
+
+    public static Matrix Matrix_mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
         if (matrix1.nbColumns != matrix2.nbRows) {
             throw new MatrixError("Matrix_mDot(Matrix,Matrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
                                                               +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
         }
+        checkResult(result, matrix1.nbRows, matrix2.nbColumns, "Matrix_mDot(Matrix,Matrix,Matrix)");
+        if (result.array == matrix1.array || result.array == matrix2.array) {
+            throw new MatrixError("Matrix_mDot(Matrix,Matrix,Matrix) - result can't share an input array");
+        }
 
+        MatrixKernels.mDot(matrix1, matrix2, result);
+        return result;
+    }
 
-        Matrix result = new Matrix(matrix1.nbRows, matrix2.nbColumns);
+    /****************************************************************
+     * vector . matrix, reading the segments of vector in place
+     ****************************************************************/
+    public static Matrix Matrix_mDot(CompositeRowMatrix vector, Matrix matrix) {
+        return Matrix_mDot(vector, matrix, new Matrix(1, matrix.nbColumns));
+    }
 
-        double[][] array1 = matrix1.array;
-        double[][] array2 = matrix2.array;
-        double[][] resultArray = result.array;
+    public static Matrix Matrix_mDot(CompositeRowMatrix vector, Matrix matrix, Matrix result) {
+        if (vector.nbColumns != matrix.nbRows) {
+            throw new MatrixError("Matrix_mDot(CompositeRowMatrix,Matrix) - v["+vector.nbColumns+"] "
+                                                                          +"m["+matrix.nbRows+","+matrix.nbColumns+"]");
+        }
+        checkResult(result, 1, matrix.nbColumns, "Matrix_mDot(CompositeRowMatrix,Matrix,Matrix)");
+        if (result.array == matrix.array || vector.reads(result.array)) {
+            throw new MatrixError("Matrix_mDot(CompositeRowMatrix,Matrix,Matrix) - result can't share an input array");
+        }
 
-        for (int i = 0; i<matrix1.nbRows; i++) {
-            for (int j = 0; j<matrix2.nbColumns; j++) {
-                resultArray[i][j] = 0;
-                for (int k = 0; k<matrix1.nbColumns; k++) {
-                    resultArray[i][j] += array1[i][k] * array2[k][j];
-                }
-            }
+        MatrixKernels.mDot(vector, matrix, result);
+        return result;
+    }
+
+    /****************************************************************
+     * vector . matrix, only reading the rows of matrix matching the
+     * non-zero elements of vector
+     ****************************************************************/
+    public static Matrix Matrix_mDot(SparseRowMatrix vector, Matrix matrix) {
+        return Matrix_mDot(vector, matrix, new Matrix(1, matrix.nbColumns));
+    }
+
+    public static Matrix Matrix_mDot(SparseRowMatrix vector, Matrix matrix, Matrix result) {
+        if (vector.nbColumns != matrix.nbRows) {
+            throw new MatrixError("Matrix_mDot(SparseRowMatrix,Matrix) - v["+vector.nbColumns+"] "
+                                                                       +"m["+matrix.nbRows+","+matrix.nbColumns+"]");
+        }
+        checkResult(result, 1, matrix.nbColumns, "Matrix_mDot(SparseRowMatrix,Matrix,Matrix)");
+        if (result.array == matrix.array) {
+            throw new MatrixError("Matrix_mDot(SparseRowMatrix,Matrix,Matrix) - result can't share an input array");
         }
+
+        MatrixKernels.mDot(vector, matrix, result);
         return result;
     }
 
-    public static double Matrix_vDot(Matrix matrix1, Matrix matrix2) {
-        if (matrix1.nbColumns > matrix1.nbRows) {
-            matrix1 = Matrix_transpose(matrix1);
+    /****************************************************************
+     * matrix . weights + bias, with bias added to every row : the
+     * affine part of a layer, in one pass over the result
+     ****************************************************************/
+    public static Matrix Matrix_affine(Matrix matrix, Matrix weights, Matrix bias) {
+        return Matrix_affine(matrix, weights, bias, new Matrix(matrix.nbRows, weights.nbColumns));
+    }
+
+    public static Matrix Matrix_affine(Matrix matrix, Matrix weights, Matrix bias, Matrix result) {
+        if (matrix.nbColumns != weights.nbRows || !bias.isRowMatrix() || bias.nbColumns != weights.nbColumns) {
+            throw new MatrixError("Matrix_affine(Matrix,Matrix,Matrix) - m["+matrix.nbRows+","+matrix.nbColumns+"] "
+                    +"w["+weights.nbRows+","+weights.nbColumns+"] b["+bias.nbRows+","+bias.nbColumns+"]");
         }
-        if (matrix2.nbColumns > matrix2.nbRows) {
-            matrix2 = Matrix_transpose(matrix2);
+        checkResult(result, matrix.nbRows, weights.nbColumns, "Matrix_affine(Matrix,Matrix,Matrix,Matrix)");
+        if (result.array == matrix.array || result.array == weights.array || result.array == bias.array) {
+            throw new MatrixError("Matrix_affine(Matrix,Matrix,Matrix,Matrix) - result can't share an input array");
         }
 
-        if (matrix1.nbColumns != 1 || matrix2.nbColumns != 1 || matrix1.nbRows != matrix2.nbRows) {
-            throw new MatrixError("Matrix_vDot(Matrix,Matrix)");
+        MatrixKernels.affine(matrix, weights, bias, result);
+        return result;
+    }
+
+    public static Matrix Matrix_affine(CompositeRowMatrix vector, Matrix weights, Matrix bias) {
+        return Matrix_affine(vector, weights, bias, new Matrix(1, weights.nbColumns));
+    }
+
+    public static Matrix Matrix_affine(CompositeRowMatrix vector, Matrix weights, Matrix bias, Matrix result) {
+        if (vector.nbColumns != weights.nbRows || !bias.isRowMatrix() || bias.nbColumns != weights.nbColumns) {
+            throw new MatrixError("Matrix_affine(CompositeRowMatrix,Matrix,Matrix) - v["+vector.nbColumns+"] "
+                    +"w["+weights.nbRows+","+weights.nbColumns+"] b["+bias.nbRows+","+bias.nbColumns+"]");
+        }
+        checkResult(result, 1, weights.nbColumns, "Matrix_affine(CompositeRowMatrix,Matrix,Matrix,Matrix)");
+        if (vector.reads(result.array) || result.array == weights.array || result.array == bias.array) {
+            throw new MatrixError("Matrix_affine(CompositeRowMatrix,Matrix,Matrix,Matrix) - result can't share an input array");
         }
 
-        double result = 0;
-        for (int i = 0; i<matrix1.nbRows; i++) {
-            result += matrix1.array[i][0] * matrix2.array[i][0];
+        MatrixKernels.affine(vector, weights, bias, result);
+        return result;
+    }
+
+    /****************************************************************
+     * matrix . transpose(weightsT) + bias : Matrix_affine() with the
+     * weights stored one row per output, which makes the products
+     * of row vectors read them contiguously
+     ****************************************************************/
+    public static Matrix Matrix_affineTransposed(Matrix matrix, Matrix weightsT, Matrix bias) {
+        return Matrix_affineTransposed(matrix, weightsT, bias, new Matrix(matrix.nbRows, weightsT.nbRows));
+    }
+
+    public static Matrix Matrix_affineTransposed(Matrix matrix, Matrix weightsT, Matrix bias, Matrix result) {
+        if (matrix.nbColumns != weightsT.nbColumns || !bias.isRowMatrix() || bias.nbColumns != weightsT.nbRows) {
+            throw new MatrixError("Matrix_affineTransposed(Matrix,Matrix,Matrix) - m["+matrix.nbRows+","+matrix.nbColumns+"] "
+                    +"wT["+weightsT.nbRows+","+weightsT.nbColumns+"] b["+bias.nbRows+","+bias.nbColumns+"]");
         }
+        checkResult(result, matrix.nbRows, weightsT.nbRows, "Matrix_affineTransposed(Matrix,Matrix,Matrix,Matrix)");
+        if (result.array == matrix.array || result.array == weightsT.array || result.array == bias.array) {
+            throw new MatrixError("Matrix_affineTransposed(Matrix,Matrix,Matrix,Matrix) - result can't share an input array");
+        }
+
+        MatrixKernels.affineTransposed(matrix, weightsT, bias, result);
         return result;
     }
 
+    public static Matrix Matrix_affineTransposed(CompositeRowMatrix vector, Matrix weightsT, Matrix bias) {
+        return Matrix_affineTransposed(vector, weightsT, bias, new Matrix(1, weightsT.nbRows));
+    }
+
+    public static Matrix Matrix_affineTransposed(CompositeRowMatrix vector, Matrix weightsT, Matrix bias, Matrix result) {
+        if (vector.nbColumns != weightsT.nbColumns || !bias.isRowMatrix() || bias.nbColumns != weightsT.nbRows) {
+            throw new MatrixError("Matrix_affineTransposed(CompositeRowMatrix,Matrix,Matrix) - v["+vector.nbColumns+"] "
+                    +"wT["+weightsT.nbRows+","+weightsT.nbColumns+"] b["+bias.nbRows+","+bias.nbColumns+"]");
+        }
+        checkResult(result, 1, weightsT.nbRows, "Matrix_affineTransposed(CompositeRowMatrix,Matrix,Matrix,Matrix)");
+        if (vector.reads(result.array) || result.array == weightsT.array || result.array == bias.array) {
+            throw new MatrixError("Matrix_affineTransposed(CompositeRowMatrix,Matrix,Matrix,Matrix) - result can't share an input array");
+        }
+
+        MatrixKernels.affineTransposed(vector, weightsT, bias, result);
+        return result;
+    }
+
+    /****************************************************************
+     * transpose(matrix1) . matrix2, without transposing matrix1
+     * A view of matrix1 without its last row skips a bias
+     ****************************************************************/
+    public static Matrix Matrix_transposeMDot(Matrix matrix1, Matrix matrix2) {
+        return Matrix_transposeMDot(matrix1, matrix2, new Matrix(matrix1.nbColumns, matrix2.nbColumns));
+    }
+
+    public static Matrix Matrix_transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if (matrix1.nbRows != matrix2.nbRows) {
+            throw new MatrixError("Matrix_transposeMDot(Matrix,Matrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                                                                      +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+        checkResult(result, matrix1.nbColumns, matrix2.nbColumns, "Matrix_transposeMDot(Matrix,Matrix,Matrix)");
+        if (result.array == matrix1.array || result.array == matrix2.array) {
+            throw new MatrixError("Matrix_transposeMDot(Matrix,Matrix,Matrix) - result can't share an input array");
+        }
+
+        MatrixKernels.transposeMDot(matrix1, matrix2, result);
+        return result;
+    }
+
+    /****************************************************************
+     * matrix1 . transpose(matrix2), without transposing matrix2
+     * A view of matrix2 without its last row skips a bias
+     ****************************************************************/
+    public static Matrix Matrix_mDotTranspose(Matrix matrix1, Matrix matrix2) {
+        return Matrix_mDotTranspose(matrix1, matrix2, new Matrix(matrix1.nbRows, matrix2.nbRows));
+    }
+
+    public static Matrix Matrix_mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if (matrix1.nbColumns != matrix2.nbColumns) {
+            throw new MatrixError("Matrix_mDotTranspose(Matrix,Matrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                                                                      +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+        checkResult(result, matrix1.nbRows, matrix2.nbRows, "Matrix_mDotTranspose(Matrix,Matrix,Matrix)");
+        if (result.array == matrix1.array || result.array == matrix2.array) {
+            throw new MatrixError("Matrix_mDotTranspose(Matrix,Matrix,Matrix) - result can't share an input array");
+        }
+
+        MatrixKernels.mDotTranspose(matrix1, matrix2, result);
+        return result;
+    }
+
+    public static double Matrix_vDot(Matrix matrix1, Matrix matrix2) {
+        if (!matrix1.isVector() || !matrix2.isVector() || matrix1.length != matrix2.length) {
+            throw new MatrixError("Matrix_vDot(Matrix,Matrix)");
+        }
+        return matrix1.vDot(matrix2);
+    }
+
     public static Matrix Matrix_abs(Matrix matrix) {
         Matrix result = new Matrix(matrix.nbRows, matrix.nbColumns);
 
         for (int i = 0; i<matrix.nbRows; i++) {
+            final int rowStart = matrix.offset + i*matrix.stride;
+            final int resultRowStart = i*result.stride;
             for (int j = 0; j<matrix.nbColumns; j++) {
-                result.array[i][j] = Math.abs(matrix.array[i][j]);
+                result.array[resultRowStart+j] = Math.abs(matrix.array[rowStart+j]);
             }
         }
         return result;
     }
 
     public static double Matrix_mean(Matrix matrix) {
-        double result = 0;
+        return matrix.avg();
+    }
 
-        for (int i = 0; i<matrix.nbRows; i++) {
-            for (int j = 0; j<matrix.nbColumns; j++) {
-                result += matrix.array[i][j];
-            }
+    /****************************************************************
+     * Error reductions between two matrices of the same shape, in
+     * one pass and without allocating their difference
+     ****************************************************************/
+
+    // mean of matrix1 - matrix2
+    public static double Matrix_meanDifference(Matrix matrix1, Matrix matrix2) {
+        checkSameShape(matrix1, matrix2, "Matrix_meanDifference(Matrix,Matrix)");
+        double sum = 0;
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            sum += MatrixKernels.sumDifference(matrix1.array, matrix1.offset + i*matrix1.stride,
+                    matrix2.array, matrix2.offset + i*matrix2.stride, matrix1.nbColumns);
         }
-        result = result / (matrix.nbRows *matrix.nbColumns);
-        return result;
+        return sum / matrix1.length;
+    }
+
+    // mean of |matrix1 - matrix2|
+    public static double Matrix_meanAbsDifference(Matrix matrix1, Matrix matrix2) {
+        checkSameShape(matrix1, matrix2, "Matrix_meanAbsDifference(Matrix,Matrix)");
+        double sum = 0;
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            sum += MatrixKernels.sumAbsDifference(matrix1.array, matrix1.offset + i*matrix1.stride,
+                    matrix2.array, matrix2.offset + i*matrix2.stride, matrix1.nbColumns);
+        }
+        return sum / matrix1.length;
+    }
 
+    // sum of (matrix1 - matrix2)^2
+    public static double Matrix_squaredError(Matrix matrix1, Matrix matrix2) {
+        checkSameShape(matrix1, matrix2, "Matrix_squaredError(Matrix,Matrix)");
+        double sum = 0;
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            sum += MatrixKernels.sumSquaredDifference(matrix1.array, matrix1.offset + i*matrix1.stride,
+                    matrix2.array, matrix2.offset + i*matrix2.stride, matrix1.nbColumns);
+        }
+        return sum;
+    }
+
+    // number of elements above threshold in only one of the matrices
+    public static int Matrix_hammingDistance(Matrix matrix1, Matrix matrix2, double threshold) {
+        checkSameShape(matrix1, matrix2, "Matrix_hammingDistance(Matrix,Matrix,double)");
+        int count = 0;
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            count += MatrixKernels.countThresholdMismatches(matrix1.array, matrix1.offset + i*matrix1.stride,
+                    matrix2.array, matrix2.offset + i*matrix2.stride, matrix1.nbColumns, threshold);
+        }
+        return count;
     }
 
     public static Matrix Matrix_deleteCol(final Matrix matrix, final int deleted) {
         if (deleted >= matrix.nbColumns) {
             throw new MatrixError("Can't delete column " + deleted + " from matrix, it only has " + matrix.nbColumns + " columns.");
         }
-        final double newMatrix[][] = new double[matrix.nbRows][matrix.nbColumns - 1];
+        final Matrix result = new Matrix(matrix.nbRows, matrix.nbColumns - 1);
 
         for (int row = 0; row < matrix.nbRows; row++) {
-            int targetCol = 0;
-            for (int col = 0; col < matrix.nbColumns; col++) {
-                if (col != deleted) {
-                    newMatrix[row][targetCol] = matrix.array[row][col]; // get(row, col);
-                    targetCol++;
-                }
-            }
-
+            final int rowStart = matrix.offset + row*matrix.stride;
+            final int resultRowStart = row*result.stride;
+            System.arraycopy(matrix.array, rowStart, result.array, resultRowStart, deleted);
+            System.arraycopy(matrix.array, rowStart+deleted+1, result.array, resultRowStart+deleted, matrix.nbColumns-deleted-1);
         }
-        return new Matrix(newMatrix);
+        return result;
     }
 
     public static Matrix Matrix_deleteRow(final Matrix matrix, final int deleted) {
         if (deleted >= matrix.nbRows) {
             throw new MatrixError("Can't delete row " + deleted + " from matrix, it only has " + matrix.nbRows + " rows.");
         }
-        final double newMatrix[][] = new double[matrix.nbRows - 1][matrix.nbColumns];
+        final Matrix result = new Matrix(matrix.nbRows - 1, matrix.nbColumns);
         int targetRow = 0;
         for (int row = 0; row < matrix.nbRows; row++) {
             if (row != deleted) {
-                for (int col = 0; col < matrix.nbColumns; col++) {
-                    newMatrix[targetRow][col] = matrix.array[row][col]; //matrix.get(row, col);
-                }
+                System.arraycopy(matrix.array, matrix.offset + row*matrix.stride, result.array, targetRow*result.stride, matrix.nbColumns);
                 targetRow++;
             }
         }
-        return new Matrix(newMatrix);
+        return result;
     }
 
     public static Matrix Matrix_concatenateRowMatrix(final Matrix matrixLeft, final Matrix matrixRight) {
+        return Matrix_concatenateRowMatrix(matrixLeft, matrixRight, new Matrix(1, matrixLeft.nbColumns+matrixRight.nbColumns));
+    }
+
+    public static Matrix Matrix_concatenateRowMatrix(final Matrix matrixLeft, final Matrix matrixRight, final Matrix result) {
         if (!matrixLeft.isRowMatrix() || !matrixRight.isRowMatrix()) {
-            throw new MatrixError("Matrix_concatenateRowMatrix(Matrix,Matrix)");
+            throw new MatrixError("Matrix_concatenateRowMatrix(Matrix,Matrix,Matrix)");
         }
+        checkResult(result, 1, matrixLeft.nbColumns+matrixRight.nbColumns, "Matrix_concatenateRowMatrix(Matrix,Matrix,Matrix)");
 
-        double[] newArray = new double[matrixLeft.nbColumns+matrixRight.nbColumns];
-        int loc = 0;
-        for (int i=0; i<matrixLeft.nbColumns; i++) {
-            newArray[loc++] = matrixLeft.array[0][i];
-        }
-        for (int i=0; i<matrixRight.nbColumns; i++) {
-            newArray[loc++] = matrixRight.array[0][i];
+        System.arraycopy(matrixLeft.array, matrixLeft.offset, result.array, result.offset, matrixLeft.nbColumns);
+        System.arraycopy(matrixRight.array, matrixRight.offset, result.array, result.offset+matrixLeft.nbColumns, matrixRight.nbColumns);
+        return result;
+    }
+
+
+    /****************************************************************
+     * Concatenate row matrices without copying them
+     * @return A composite of the row matrices
+     ****************************************************************/
+    public static CompositeRowMatrix Matrix_concatenateRowMatrixView(final Matrix... matrices) {
+        return new CompositeRowMatrix(matrices);
+    }
+
+
+    private static void checkSameShape(final Matrix matrix1, final Matrix matrix2, final String method) {
+        if (matrix1.nbRows != matrix2.nbRows || matrix1.nbColumns != matrix2.nbColumns) {
+            throw new MatrixError(method+" - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
         }
+    }
 
-        return Matrix.newRowMatrix(newArray);
+    private static void checkResult(final Matrix result, final int nbRows, final int nbColumns, final String method) {
+        if (result.nbRows != nbRows || result.nbColumns != nbColumns) {
+            throw new MatrixError(method+" - result["+result.nbRows+","+result.nbColumns+"] "
+                    +"expected["+nbRows+","+nbColumns+"]");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,201 @@
+package cesure.utils;
+
+/****************************************************************
+ * Plain scalar loops : the reference every other backend must
+ * agree with, and the fastest one for tiny shapes
+ ****************************************************************/
+public class NaiveBackend implements MatrixBackend {
+
+    @Override
+    public String getName() {
+        return "naive";
+    }
+
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2 with the textbook i-j-k loop
+     ****************************************************************/
+    @Override
+    public void mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] array1 = matrix1.array;
+        final double[] array2 = matrix2.array;
+        final double[] resultArray = result.array;
+
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<matrix2.nbColumns; j++) {
+                double sum = 0;
+                for (int k = 0; k<matrix1.nbColumns; k++) {
+                    sum += array1[rowStart1+k] * array2[matrix2.offset + k*matrix2.stride + j];
+                }
+                resultArray[resultRowStart+j] = sum;
+            }
+        }
+    }
+
+    @Override
+    public void mDotRowVector(Matrix vector, Matrix matrix, Matrix result) {
+        mDot(vector, matrix, result);
+    }
+
+    @Override
+    public void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] array1 = matrix1.array;
+        final double[] array2 = matrix2.array;
+        final double[] resultArray = result.array;
+
+        for (int i = 0; i<matrix1.nbColumns; i++) {
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<matrix2.nbColumns; j++) {
+                double sum = 0;
+                for (int k = 0; k<matrix1.nbRows; k++) {
+                    sum += array1[matrix1.offset + k*matrix1.stride + i] * array2[matrix2.offset + k*matrix2.stride + j];
+                }
+                resultArray[resultRowStart+j] = sum;
+            }
+        }
+    }
+
+    @Override
+    public void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] array1 = matrix1.array;
+        final double[] array2 = matrix2.array;
+        final double[] resultArray = result.array;
+
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int j = 0; j<matrix2.nbRows; j++) {
+                final int rowStart2 = matrix2.offset + j*matrix2.stride;
+                double sum = 0;
+                for (int k = 0; k<matrix1.nbColumns; k++) {
+                    sum += array1[rowStart1+k] * array2[rowStart2+k];
+                }
+                resultArray[resultRowStart+j] = sum;
+            }
+        }
+    }
+
+    @Override
+    public void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        for (int j = 0; j<nbRows; j++) {
+            final int rowStart = matrixOffset + j*stride;
+            double sum = 0;
+            for (int k = 0; k<length; k++) {
+                sum += vector[vectorOffset+k] * matrix[rowStart+k];
+            }
+            result[resultOffset+j] += sum;
+        }
+    }
+
+
+    @Override
+    public void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] += b[bOffset+i];
+        }
+    }
+
+    @Override
+    public void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] -= b[bOffset+i];
+        }
+    }
+
+    @Override
+    public void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] *= b[bOffset+i];
+        }
+    }
+
+    @Override
+    public void mult(double[] a, int aOffset, int length, double value) {
+        for (int i = 0; i<length; i++) {
+            a[aOffset+i] *= value;
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        for (int i = 0; i<length; i++) {
+            y[yOffset+i] += alpha * x[xOffset+i];
+        }
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += a[aOffset+i] * b[bOffset+i];
+        }
+        return result;
+    }
+
+    @Override
+    public double sum(double[] a, int aOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += a[aOffset+i];
+        }
+        return result;
+    }
+
+    @Override
+    public double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += a[aOffset+i] - b[bOffset+i];
+        }
+        return result;
+    }
+
+    @Override
+    public double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += Math.abs(a[aOffset+i] - b[bOffset+i]);
+        }
+        return result;
+    }
+
+    @Override
+    public double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            final double d = a[aOffset+i] - b[bOffset+i];
+            result += d*d;
+        }
+        return result;
+    }
+
+    @Override
+    public int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        int result = 0;
+        for (int i = 0; i<length; i++) {
+            if ((a[aOffset+i] > threshold) != (b[bOffset+i] > threshold)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        for (int i = 0; i<length; i++) {
+            final double v = x[xOffset+i];
+            result[resultOffset+i] = shift + scale*(v/(1+Math.abs(v)));
+        }
+    }
+
+    @Override
+    public void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        for (int i = 0; i<length; i++) {
+            final double d = 1 + Math.abs(x[xOffset+i]);
+            result[resultOffset+i] = scale/(d*d);
+        }
+    }
+}
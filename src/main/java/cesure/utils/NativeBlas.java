@@ -0,0 +1,142 @@
+package cesure.utils;
+
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.incubator.foreign.SymbolLookup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+
+import static jdk.incubator.foreign.CLinker.C_DOUBLE;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+
+/****************************************************************
+ * Downcalls to the cblas_dgemm function of a native CBLAS
+ * library, through the jdk.incubator.foreign module
+ * Only use it when BlasBackend.AVAILABLE is true : this class
+ * can't even be loaded when the module isn't available
+ *
+ * A downcall can't read the Java heap, so the operands are copied
+ * to native memory and the result is copied back
+ ****************************************************************/
+final class NativeBlas {
+
+    // CBLAS enums
+    private static final int ROW_MAJOR = 101;
+    private static final int NO_TRANS = 111;
+    private static final int TRANS = 112;
+
+    // Tried in order when -Dcesure.blas.library isn't set : a name looked up in
+    // java.library.path, then the usual paths of the OpenBLAS runtime package
+    private static final String[] DEFAULT_LIBRARIES = {"openblas",
+            "/usr/lib/x86_64-linux-gnu/libopenblas.so.0", "/usr/lib/aarch64-linux-gnu/libopenblas.so.0",
+            "/usr/lib64/libopenblas.so.0", "/usr/lib/libopenblas.so.0"};
+
+    private static final MethodHandle DGEMM;
+
+    static {
+        MethodHandle dgemm = null;
+        try {
+            final String library = System.getProperty("cesure.blas.library");
+            if (library != null) {
+                load(library);
+            } else {
+                loadDefault();
+            }
+            final CLinker linker = CLinker.getInstance();
+            final SymbolLookup lookup = SymbolLookup.loaderLookup();
+            final MemoryAddress dgemmSymbol = lookup.lookup("cblas_dgemm").orElse(null);
+            if (dgemmSymbol != null) {
+                dgemm = linker.downcallHandle(dgemmSymbol,
+                        MethodType.methodType(void.class, int.class, int.class, int.class, int.class, int.class, int.class,
+                                double.class, MemoryAddress.class, int.class, MemoryAddress.class, int.class,
+                                double.class, MemoryAddress.class, int.class),
+                        FunctionDescriptor.ofVoid(C_INT, C_INT, C_INT, C_INT, C_INT, C_INT,
+                                C_DOUBLE, C_POINTER, C_INT, C_POINTER, C_INT,
+                                C_DOUBLE, C_POINTER, C_INT));
+            }
+        } catch (UnsatisfiedLinkError | RuntimeException e) {
+            // No library, or no native access for this module : BlasBackend stays unavailable
+            dgemm = null;
+        }
+        DGEMM = dgemm;
+    }
+
+    private NativeBlas() {
+    }
+
+    // A path is loaded as is, a name is looked up in java.library.path
+    private static void load(String library) {
+        if (library.indexOf('/') >= 0 || library.indexOf('\\') >= 0) {
+            System.load(library);
+        } else {
+            System.loadLibrary(library);
+        }
+    }
+
+    private static void loadDefault() {
+        for (int i = 0; i<DEFAULT_LIBRARIES.length; i++) {
+            try {
+                load(DEFAULT_LIBRARIES[i]);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                if (i == DEFAULT_LIBRARIES.length-1) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    static boolean isLoaded() {
+        return DGEMM != null;
+    }
+
+
+    /****************************************************************
+     * Compute result = op(matrix1) . op(matrix2) with cblas_dgemm,
+     * op transposing its matrix when its flag is true
+     ****************************************************************/
+    static void dgemm(Matrix matrix1, boolean transpose1, Matrix matrix2, boolean transpose2, Matrix result) {
+        final int nbRows = result.nbRows;
+        final int nbColumns = result.nbColumns;
+        final int inner = transpose1 ? matrix1.nbRows : matrix1.nbColumns;
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final MemorySegment segment1 = toNative(matrix1, scope);
+            final MemorySegment segment2 = toNative(matrix2, scope);
+            final MemorySegment resultSegment = MemorySegment.allocateNative((long) nbRows * nbColumns * Double.BYTES, Double.BYTES, scope);
+            DGEMM.invokeExact(ROW_MAJOR, transpose1 ? TRANS : NO_TRANS, transpose2 ? TRANS : NO_TRANS,
+                    nbRows, nbColumns, inner,
+                    1.0, segment1.address(), matrix1.stride, segment2.address(), matrix2.stride,
+                    0.0, resultSegment.address(), nbColumns);
+            fromNative(resultSegment, result);
+        } catch (Throwable e) {
+            throw new MatrixError("NativeBlas.dgemm(Matrix,boolean,Matrix,boolean,Matrix) - "+e);
+        }
+    }
+
+    // Copy the elements spanned by matrix, stride included, to native memory
+    private static MemorySegment toNative(Matrix matrix, ResourceScope scope) {
+        final long span = (long) (matrix.nbRows-1) * matrix.stride + matrix.nbColumns;
+        final MemorySegment segment = MemorySegment.allocateNative(span * Double.BYTES, Double.BYTES, scope);
+        segment.copyFrom(MemorySegment.ofArray(matrix.array).asSlice((long) matrix.offset * Double.BYTES, span * Double.BYTES));
+        return segment;
+    }
+
+    // Copy a dense native result into result, row by row when result is a view
+    private static void fromNative(MemorySegment segment, Matrix result) {
+        final MemorySegment array = MemorySegment.ofArray(result.array);
+        if (result.isContiguous()) {
+            array.asSlice((long) result.offset * Double.BYTES, (long) result.length * Double.BYTES).copyFrom(segment);
+            return;
+        }
+        final long rowBytes = (long) result.nbColumns * Double.BYTES;
+        for (int i = 0; i<result.nbRows; i++) {
+            array.asSlice((long) (result.offset + i*result.stride) * Double.BYTES, rowBytes)
+                    .copyFrom(segment.asSlice(i * rowBytes, rowBytes));
+        }
+    }
+}
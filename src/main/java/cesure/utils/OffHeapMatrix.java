@@ -0,0 +1,246 @@
+package cesure.utils;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.util.random.RandomGenerator;
+
+import static cesure.utils.RandomUtils.random;
+
+/****************************************************************
+ * Matrix whose elements live off-heap in a native MemorySegment,
+ * with the same row-major layout as Matrix
+ * The memory belongs to the ResourceScope given at creation : it
+ * is freed, and every matrix using it becomes unusable, when the
+ * scope is closed
+ * Needs the JVM option --add-modules jdk.incubator.foreign
+ * The networks don't use it : their weights stay in Matrix, which
+ * their serialization and cloning rely on
+ ****************************************************************/
+public class OffHeapMatrix {
+
+    public final int nbRows;
+    public final int nbColumns;
+    public final int length;
+
+    // Row-major storage : element (row,col) is the double at index offset + row*stride + col
+    public final MemorySegment segment;
+    public final long offset;
+    public final int stride;
+
+
+
+    /****************************************************************
+     * Allocate a zeroed matrix
+     * @param nbRows The number of rows
+     * @param nbColumns The number of columns
+     * @param scope The scope owning the memory
+     ****************************************************************/
+    public OffHeapMatrix(int nbRows, int nbColumns, ResourceScope scope) {
+        this(MemorySegment.allocateNative((long) nbRows * nbColumns * Double.BYTES, Double.BYTES, scope),
+                0, nbRows, nbColumns, nbColumns);
+    }
+
+    /****************************************************************
+     * Copy an on-heap matrix
+     * @param matrix The matrix to copy
+     * @param scope The scope owning the memory
+     ****************************************************************/
+    public OffHeapMatrix(Matrix matrix, ResourceScope scope) {
+        this(matrix.nbRows, matrix.nbColumns, scope);
+        copyFrom(matrix);
+    }
+
+    private OffHeapMatrix(MemorySegment segment, long offset, int nbRows, int nbColumns, int stride) {
+        this.nbRows = nbRows;
+        this.nbColumns = nbColumns;
+        this.length = nbRows * nbColumns;
+        this.segment = segment;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /****************************************************************
+     * Use an existing segment, for example a mapped file, as a
+     * row-major matrix, without copying it
+     * @param segment The segment, holding at least nbRows*nbColumns doubles
+     * @param nbRows The number of rows
+     * @param nbColumns The number of columns
+     * @return The matrix
+     ****************************************************************/
+    public static OffHeapMatrix wrap(MemorySegment segment, int nbRows, int nbColumns) {
+        if (nbRows < 0 || nbColumns < 0 || segment.byteSize() < (long) nbRows * nbColumns * Double.BYTES) {
+            throw new MatrixError("OffHeapMatrix.wrap(MemorySegment,int,int)");
+        }
+        return new OffHeapMatrix(segment, 0, nbRows, nbColumns, nbColumns);
+    }
+
+    public OffHeapMatrix cp(ResourceScope scope) {
+        final OffHeapMatrix matrix = new OffHeapMatrix(nbRows, nbColumns, scope);
+        for (int i = 0; i<nbRows; i++) {
+            matrix.rowSegment(i).copyFrom(rowSegment(i));
+        }
+        return matrix;
+    }
+
+    public void copyFrom(Matrix matrix) {
+        if (nbRows != matrix.nbRows || nbColumns != matrix.nbColumns) { throw new MatrixError("OffHeapMatrix.copyFrom(Matrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            rowSegment(i).copyFrom(MemorySegment.ofArray(matrix.array)
+                    .asSlice((long) (matrix.offset + i*matrix.stride) * Double.BYTES, (long) nbColumns * Double.BYTES));
+        }
+    }
+
+    public Matrix toMatrix() {
+        final Matrix matrix = new Matrix(nbRows, nbColumns);
+        final MemorySegment heapSegment = MemorySegment.ofArray(matrix.array);
+        for (int i = 0; i<nbRows; i++) {
+            heapSegment.asSlice((long) i * nbColumns * Double.BYTES, (long) nbColumns * Double.BYTES).copyFrom(rowSegment(i));
+        }
+        return matrix;
+    }
+
+    private MemorySegment rowSegment(int row) {
+        return segment.asSlice((offset + (long) row*stride) * Double.BYTES, (long) nbColumns * Double.BYTES);
+    }
+
+    public boolean isRowMatrix() {
+        return nbRows == 1;
+    }
+
+    public boolean isColumnMatrix() {
+        return nbColumns == 1;
+    }
+
+    public boolean isVector() { return isRowMatrix() || isColumnMatrix(); }
+
+    /****************************************************************
+     * Return a view on a block of this matrix : the view shares this
+     * matrix's memory, so writing in one writes in the other
+     ****************************************************************/
+    public OffHeapMatrix view(int firstRow, int firstColumn, int nbRows, int nbColumns) {
+        if (firstRow < 0 || firstColumn < 0 || nbRows < 0 || nbColumns < 0
+                || firstRow + nbRows > this.nbRows || firstColumn + nbColumns > this.nbColumns) {
+            throw new MatrixError("OffHeapMatrix.view(int,int,int,int)");
+        }
+        return new OffHeapMatrix(segment, offset + (long) firstRow*stride + firstColumn, nbRows, nbColumns, stride);
+    }
+
+
+    public double get(int row, int col) {
+        if (row < 0 || row >= nbRows || col < 0 || col >= nbColumns) {throw new MatrixError("OffHeapMatrix.get(int,int)");}
+        return MemoryAccess.getDoubleAtIndex(segment, offset + (long) row*stride + col);
+    }
+
+    public double get(int i) {
+        if (i < 0 || i >= length) {throw new MatrixError("OffHeapMatrix.get(int)");}
+        return MemoryAccess.getDoubleAtIndex(segment, offset + (long) (i/nbColumns)*stride + i%nbColumns);
+    }
+
+    public void set(int row, int col, double value) {
+        if (row < 0 || row >= nbRows || col < 0 || col >= nbColumns) {throw new MatrixError("OffHeapMatrix.set(int,int,double)");}
+        MemoryAccess.setDoubleAtIndex(segment, offset + (long) row*stride + col, value);
+    }
+
+    public void set(int i, double value) {
+        if (i < 0 || i >= length) {throw new MatrixError("OffHeapMatrix.set(int,double)");}
+        MemoryAccess.setDoubleAtIndex(segment, offset + (long) (i/nbColumns)*stride + i%nbColumns, value);
+    }
+
+    public void setZero() {
+        for (int i = 0; i<nbRows; i++) {
+            rowSegment(i).fill((byte) 0);
+        }
+    }
+
+    public void randomize(RandomGenerator rand, double minChange, double maxChange) {
+        for (int i = 0; i<nbRows; i++) {
+            final long rowStart = offset + (long) i*stride;
+            for (int j = 0; j<nbColumns; j++) {
+                final double value = MemoryAccess.getDoubleAtIndex(segment, rowStart+j);
+                MemoryAccess.setDoubleAtIndex(segment, rowStart+j, value + random(rand, minChange, maxChange));
+            }
+        }
+    }
+
+
+    public void print() {
+        toMatrix().print();
+    }
+
+
+    public OffHeapMatrix add(OffHeapMatrix matrix) {
+        if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("OffHeapMatrix.add(OffHeapMatrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            final long rowStart = offset + (long) i*stride;
+            final long rowStart2 = matrix.offset + (long) i*matrix.stride;
+            for (int j = 0; j<nbColumns; j++) {
+                MemoryAccess.setDoubleAtIndex(segment, rowStart+j,
+                        MemoryAccess.getDoubleAtIndex(segment, rowStart+j) + MemoryAccess.getDoubleAtIndex(matrix.segment, rowStart2+j));
+            }
+        }
+        return this;
+    }
+
+    public OffHeapMatrix substract(OffHeapMatrix matrix) {
+        if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("OffHeapMatrix.substract(OffHeapMatrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            final long rowStart = offset + (long) i*stride;
+            final long rowStart2 = matrix.offset + (long) i*matrix.stride;
+            for (int j = 0; j<nbColumns; j++) {
+                MemoryAccess.setDoubleAtIndex(segment, rowStart+j,
+                        MemoryAccess.getDoubleAtIndex(segment, rowStart+j) - MemoryAccess.getDoubleAtIndex(matrix.segment, rowStart2+j));
+            }
+        }
+        return this;
+    }
+
+    public OffHeapMatrix pMult(OffHeapMatrix matrix) {
+        if (nbColumns != matrix.nbColumns || nbRows != matrix.nbRows) { throw new MatrixError("OffHeapMatrix.pMult(OffHeapMatrix)"); }
+        for (int i = 0; i<nbRows; i++) {
+            final long rowStart = offset + (long) i*stride;
+            final long rowStart2 = matrix.offset + (long) i*matrix.stride;
+            for (int j = 0; j<nbColumns; j++) {
+                MemoryAccess.setDoubleAtIndex(segment, rowStart+j,
+                        MemoryAccess.getDoubleAtIndex(segment, rowStart+j) * MemoryAccess.getDoubleAtIndex(matrix.segment, rowStart2+j));
+            }
+        }
+        return this;
+    }
+
+    public OffHeapMatrix mult(double a) {
+        for (int i = 0; i<nbRows; i++) {
+            final long rowStart = offset + (long) i*stride;
+            for (int j = 0; j<nbColumns; j++) {
+                MemoryAccess.setDoubleAtIndex(segment, rowStart+j, MemoryAccess.getDoubleAtIndex(segment, rowStart+j) * a);
+            }
+        }
+        return this;
+    }
+
+    public double vDot(OffHeapMatrix matrix) {
+        if (!isVector() || !matrix.isVector() || length != matrix.length) {throw new MatrixError("OffHeapMatrix.vDot(OffHeapMatrix)");}
+
+        final int step = isRowMatrix() ? 1 : stride;
+        final int step2 = matrix.isRowMatrix() ? 1 : matrix.stride;
+        double result = 0;
+        for (int i = 0; i<length; i++) {
+            result += MemoryAccess.getDoubleAtIndex(segment, offset + (long) i*step)
+                    * MemoryAccess.getDoubleAtIndex(matrix.segment, matrix.offset + (long) i*step2);
+        }
+        return result;
+    }
+
+    public double avg() {
+        double sum = 0;
+        for (int i = 0; i<nbRows; i++) {
+            final long rowStart = offset + (long) i*stride;
+            for (int j = 0; j<nbColumns; j++) {
+                sum += MemoryAccess.getDoubleAtIndex(segment, rowStart+j);
+            }
+        }
+        return sum / length;
+    }
+
+}
@@ -0,0 +1,235 @@
+package cesure.utils;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/****************************************************************
+ * MatrixMath operations on OffHeapMatrix
+ * They all write into a caller-supplied result, since allocating
+ * off-heap memory needs a ResourceScope
+ ****************************************************************/
+public class OffHeapMatrixMath {
+
+    public static OffHeapMatrix OffHeapMatrix_identity(OffHeapMatrix result) {
+        if (result.nbRows != result.nbColumns) {
+            throw new MatrixError("OffHeapMatrix_identity(OffHeapMatrix) - result["+result.nbRows+","+result.nbColumns+"] isn't square");
+        }
+        result.setZero();
+        for (int i = 0; i<result.nbRows; i++) {
+            set(result, i, i, 1);
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_transpose(OffHeapMatrix matrix, OffHeapMatrix result) {
+        checkResult(result, matrix.nbColumns, matrix.nbRows, "OffHeapMatrix_transpose(OffHeapMatrix,OffHeapMatrix)");
+        if (result.segment == matrix.segment) {
+            throw new MatrixError("OffHeapMatrix_transpose(OffHeapMatrix,OffHeapMatrix) - result can't share the input segment");
+        }
+        for (int i = 0; i<matrix.nbRows; i++) {
+            for (int j = 0; j<matrix.nbColumns; j++) {
+                MemoryAccess.setDoubleAtIndex(result.segment, result.offset + (long) j*result.stride + i,
+                        MemoryAccess.getDoubleAtIndex(matrix.segment, matrix.offset + (long) i*matrix.stride + j));
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_add(OffHeapMatrix matrix1, OffHeapMatrix matrix2, OffHeapMatrix result) {
+        checkSameShape(matrix1, matrix2, "OffHeapMatrix_add(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "OffHeapMatrix_add(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                set(result, i, j, get(matrix1, i, j) + get(matrix2, i, j));
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_substract(OffHeapMatrix matrix1, OffHeapMatrix matrix2, OffHeapMatrix result) {
+        checkSameShape(matrix1, matrix2, "OffHeapMatrix_substract(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "OffHeapMatrix_substract(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                set(result, i, j, get(matrix1, i, j) - get(matrix2, i, j));
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_mult(OffHeapMatrix matrix1, double value, OffHeapMatrix result) {
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "OffHeapMatrix_mult(OffHeapMatrix,double,OffHeapMatrix)");
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                set(result, i, j, get(matrix1, i, j) * value);
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_pMult(OffHeapMatrix matrix1, OffHeapMatrix matrix2, OffHeapMatrix result) {
+        checkSameShape(matrix1, matrix2, "OffHeapMatrix_pMult(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "OffHeapMatrix_pMult(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                set(result, i, j, get(matrix1, i, j) * get(matrix2, i, j));
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_divide(OffHeapMatrix matrix1, OffHeapMatrix matrix2, OffHeapMatrix result) {
+        checkSameShape(matrix1, matrix2, "OffHeapMatrix_divide(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        checkResult(result, matrix1.nbRows, matrix1.nbColumns, "OffHeapMatrix_divide(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            for (int j = 0; j<matrix1.nbColumns; j++) {
+                set(result, i, j, get(matrix1, i, j) / get(matrix2, i, j));
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_abs(OffHeapMatrix matrix, OffHeapMatrix result) {
+        checkResult(result, matrix.nbRows, matrix.nbColumns, "OffHeapMatrix_abs(OffHeapMatrix,OffHeapMatrix)");
+        for (int i = 0; i<matrix.nbRows; i++) {
+            for (int j = 0; j<matrix.nbColumns; j++) {
+                set(result, i, j, Math.abs(get(matrix, i, j)));
+            }
+        }
+        return result;
+    }
+
+    public static double OffHeapMatrix_mean(OffHeapMatrix matrix) {
+        return matrix.avg();
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_mDot(OffHeapMatrix matrix1, OffHeapMatrix matrix2, OffHeapMatrix result) {
+        if (matrix1.nbColumns != matrix2.nbRows) {
+            throw new MatrixError("OffHeapMatrix_mDot(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+        checkResult(result, matrix1.nbRows, matrix2.nbColumns, "OffHeapMatrix_mDot(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        if (result.segment == matrix1.segment || result.segment == matrix2.segment) {
+            throw new MatrixError("OffHeapMatrix_mDot(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix) - result can't share an input segment");
+        }
+
+        result.setZero();
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final long resultRowStart = result.offset + (long) i*result.stride;
+            for (int k = 0; k<matrix1.nbColumns; k++) {
+                final double a = get(matrix1, i, k);
+                final long rowStart2 = matrix2.offset + (long) k*matrix2.stride;
+                for (int j = 0; j<matrix2.nbColumns; j++) {
+                    MemoryAccess.setDoubleAtIndex(result.segment, resultRowStart+j,
+                            MemoryAccess.getDoubleAtIndex(result.segment, resultRowStart+j)
+                                    + a * MemoryAccess.getDoubleAtIndex(matrix2.segment, rowStart2+j));
+                }
+            }
+        }
+        return result;
+    }
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2 for on-heap activations
+     * and off-heap weights
+     ****************************************************************/
+    public static Matrix OffHeapMatrix_mDot(Matrix matrix1, OffHeapMatrix matrix2, Matrix result) {
+        if (matrix1.nbColumns != matrix2.nbRows || result.nbRows != matrix1.nbRows || result.nbColumns != matrix2.nbColumns) {
+            throw new MatrixError("OffHeapMatrix_mDot(Matrix,OffHeapMatrix,Matrix) - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"] result["+result.nbRows+","+result.nbColumns+"]");
+        }
+        if (result.array == matrix1.array) {
+            throw new MatrixError("OffHeapMatrix_mDot(Matrix,OffHeapMatrix,Matrix) - result can't share the input array");
+        }
+        final MemorySegment segment2 = matrix2.segment;
+
+        result.setZero();
+        for (int i = 0; i<matrix1.nbRows; i++) {
+            final int rowStart1 = matrix1.offset + i*matrix1.stride;
+            final int resultRowStart = result.offset + i*result.stride;
+            for (int k = 0; k<matrix1.nbColumns; k++) {
+                final double a = matrix1.array[rowStart1+k];
+                final long rowStart2 = matrix2.offset + (long) k*matrix2.stride;
+                for (int j = 0; j<matrix2.nbColumns; j++) {
+                    result.array[resultRowStart+j] += a * MemoryAccess.getDoubleAtIndex(segment2, rowStart2+j);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_deleteCol(final OffHeapMatrix matrix, final int deleted, final OffHeapMatrix result) {
+        if (deleted < 0 || deleted >= matrix.nbColumns) {
+            throw new MatrixError("Can't delete column " + deleted + " from matrix, it only has " + matrix.nbColumns + " columns.");
+        }
+        checkResult(result, matrix.nbRows, matrix.nbColumns - 1, "OffHeapMatrix_deleteCol(OffHeapMatrix,int,OffHeapMatrix)");
+        if (result.segment == matrix.segment) {
+            throw new MatrixError("OffHeapMatrix_deleteCol(OffHeapMatrix,int,OffHeapMatrix) - result can't share the input segment");
+        }
+        for (int row = 0; row < matrix.nbRows; row++) {
+            slice(result, row, 0, deleted).copyFrom(slice(matrix, row, 0, deleted));
+            slice(result, row, deleted, matrix.nbColumns-deleted-1).copyFrom(slice(matrix, row, deleted+1, matrix.nbColumns-deleted-1));
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_deleteRow(final OffHeapMatrix matrix, final int deleted, final OffHeapMatrix result) {
+        if (deleted < 0 || deleted >= matrix.nbRows) {
+            throw new MatrixError("Can't delete row " + deleted + " from matrix, it only has " + matrix.nbRows + " rows.");
+        }
+        checkResult(result, matrix.nbRows - 1, matrix.nbColumns, "OffHeapMatrix_deleteRow(OffHeapMatrix,int,OffHeapMatrix)");
+        if (result.segment == matrix.segment) {
+            throw new MatrixError("OffHeapMatrix_deleteRow(OffHeapMatrix,int,OffHeapMatrix) - result can't share the input segment");
+        }
+        int targetRow = 0;
+        for (int row = 0; row < matrix.nbRows; row++) {
+            if (row != deleted) {
+                slice(result, targetRow, 0, matrix.nbColumns).copyFrom(slice(matrix, row, 0, matrix.nbColumns));
+                targetRow++;
+            }
+        }
+        return result;
+    }
+
+    public static OffHeapMatrix OffHeapMatrix_concatenateRowMatrix(final OffHeapMatrix matrixLeft, final OffHeapMatrix matrixRight,
+                                                                   final OffHeapMatrix result) {
+        if (!matrixLeft.isRowMatrix() || !matrixRight.isRowMatrix()) {
+            throw new MatrixError("OffHeapMatrix_concatenateRowMatrix(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        }
+        checkResult(result, 1, matrixLeft.nbColumns+matrixRight.nbColumns, "OffHeapMatrix_concatenateRowMatrix(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix)");
+        if (result.segment == matrixLeft.segment || result.segment == matrixRight.segment) {
+            throw new MatrixError("OffHeapMatrix_concatenateRowMatrix(OffHeapMatrix,OffHeapMatrix,OffHeapMatrix) - result can't share an input segment");
+        }
+        slice(result, 0, 0, matrixLeft.nbColumns).copyFrom(slice(matrixLeft, 0, 0, matrixLeft.nbColumns));
+        slice(result, 0, matrixLeft.nbColumns, matrixRight.nbColumns).copyFrom(slice(matrixRight, 0, 0, matrixRight.nbColumns));
+        return result;
+    }
+
+
+    // The nbColumns elements of row from firstColumn
+    private static MemorySegment slice(OffHeapMatrix matrix, int row, int firstColumn, int nbColumns) {
+        return matrix.segment.asSlice((matrix.offset + (long) row*matrix.stride + firstColumn) * Double.BYTES, (long) nbColumns * Double.BYTES);
+    }
+
+    private static double get(OffHeapMatrix matrix, int row, int col) {
+        return MemoryAccess.getDoubleAtIndex(matrix.segment, matrix.offset + (long) row*matrix.stride + col);
+    }
+
+    private static void set(OffHeapMatrix matrix, int row, int col, double value) {
+        MemoryAccess.setDoubleAtIndex(matrix.segment, matrix.offset + (long) row*matrix.stride + col, value);
+    }
+
+    private static void checkSameShape(final OffHeapMatrix matrix1, final OffHeapMatrix matrix2, final String method) {
+        if (matrix1.nbColumns != matrix2.nbColumns || matrix1.nbRows != matrix2.nbRows) {
+            throw new MatrixError(method+" - m1["+matrix1.nbRows+","+matrix1.nbColumns+"] "
+                    +"m2["+matrix2.nbRows+","+matrix2.nbColumns+"]");
+        }
+    }
+
+    private static void checkResult(final OffHeapMatrix result, final int nbRows, final int nbColumns, final String method) {
+        if (result.nbRows != nbRows || result.nbColumns != nbColumns) {
+            throw new MatrixError(method+" - result["+result.nbRows+","+result.nbColumns+"] "
+                    +"expected["+nbRows+","+nbColumns+"]");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cesure.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/****************************************************************
+ * Splits the big products of another backend across the common
+ * ForkJoinPool, everything else is left to that backend
+ ****************************************************************/
+public class ParallelBackend implements MatrixBackend {
+
+    // From this number of multiply-adds, the product is split across the common ForkJoinPool
+    public static final long MDOT_PARALLEL_THRESHOLD = 1L << 21;
+    // Each parallel task computes at most about this number of multiply-adds
+    private static final long MDOT_PARALLEL_TASK_SIZE = 1L << 19;
+
+    // The backend computing each part
+    public final MatrixBackend sequential;
+
+    public ParallelBackend(MatrixBackend sequential) {
+        this.sequential = sequential;
+    }
+
+    @Override
+    public String getName() {
+        return "parallel";
+    }
+
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2 on the common ForkJoinPool :
+     * the result is recursively split by rows, or by columns when
+     * there are too few rows, and each part is computed sequentially
+     ****************************************************************/
+    @Override
+    public void mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        if ((long) matrix1.nbRows * matrix1.nbColumns * matrix2.nbColumns >= MDOT_PARALLEL_THRESHOLD
+                && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ForkJoinPool.commonPool().invoke(new MDotTask(matrix1, matrix2, result));
+        } else {
+            sequential.mDot(matrix1, matrix2, result);
+        }
+    }
+
+    @SuppressWarnings("serial") // never serialized, like the pool running it
+    private class MDotTask extends RecursiveAction {
+
+        private final Matrix matrix1;
+        private final Matrix matrix2;
+        private final Matrix result;
+
+        private MDotTask(Matrix matrix1, Matrix matrix2, Matrix result) {
+            this.matrix1 = matrix1;
+            this.matrix2 = matrix2;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            final int nbRows = result.nbRows;
+            final int nbColumns = result.nbColumns;
+            if ((long) nbRows * matrix1.nbColumns * nbColumns <= MDOT_PARALLEL_TASK_SIZE) {
+                sequential.mDot(matrix1, matrix2, result);
+            } else if (nbRows >= 8) { // at least 4 rows per part for the blocked kernel
+                final int half = nbRows / 2;
+                invokeAll(new MDotTask(matrix1.view(0, 0, half, matrix1.nbColumns), matrix2,
+                                result.view(0, 0, half, nbColumns)),
+                        new MDotTask(matrix1.view(half, 0, nbRows-half, matrix1.nbColumns), matrix2,
+                                result.view(half, 0, nbRows-half, nbColumns)));
+            } else if (nbColumns >= 128) { // at least 64 columns per part to keep long inner loops
+                final int half = nbColumns / 2;
+                invokeAll(new MDotTask(matrix1, matrix2.view(0, 0, matrix2.nbRows, half),
+                                result.view(0, 0, nbRows, half)),
+                        new MDotTask(matrix1, matrix2.view(0, half, matrix2.nbRows, nbColumns-half),
+                                result.view(0, half, nbRows, nbColumns-half)));
+            } else {
+                sequential.mDot(matrix1, matrix2, result);
+            }
+        }
+    }
+
+    @Override
+    public void mDotRowVector(Matrix vector, Matrix matrix, Matrix result) {
+        mDot(vector, matrix, result);
+    }
+
+    @Override
+    public void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        sequential.transposeMDot(matrix1, matrix2, result);
+    }
+
+    @Override
+    public void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        sequential.mDotTranspose(matrix1, matrix2, result);
+    }
+
+    @Override
+    public void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        sequential.accumulateDots(vector, vectorOffset, length, matrix, matrixOffset, stride, result, resultOffset, nbRows);
+    }
+
+
+    @Override
+    public void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        sequential.add(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        sequential.substract(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        sequential.pMult(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void mult(double[] a, int aOffset, int length, double value) {
+        sequential.mult(a, aOffset, length, value);
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        sequential.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return sequential.dot(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sum(double[] a, int aOffset, int length) {
+        return sequential.sum(a, aOffset, length);
+    }
+
+    @Override
+    public double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return sequential.sumDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return sequential.sumAbsDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return sequential.sumSquaredDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        return sequential.countThresholdMismatches(a, aOffset, b, bOffset, length, threshold);
+    }
+
+    @Override
+    public void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        sequential.softsign(x, xOffset, result, resultOffset, length, shift, scale);
+    }
+
+    @Override
+    public void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        sequential.softsignDerivative(x, xOffset, result, resultOffset, length, scale);
+    }
+}
@@ -1,19 +1,156 @@
 package cesure.utils;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
 
 public class RandomUtils {
 
-    public static double random(Random rand, double min, double max) {
+    // Each thread gets its own generator, split from this one
+    private static final SplittableRandom ROOT = new SplittableRandom();
+    private static final ThreadLocal<SplittableRandom> GENERATORS = ThreadLocal.withInitial(RandomUtils::split);
+
+    private static synchronized SplittableRandom split() {
+        return ROOT.split();
+    }
+
+    /****************************************************************
+     * Return the generator of the current thread : it is never
+     * shared, so threads drawing numbers don't contend
+     ****************************************************************/
+    public static SplittableRandom current() {
+        return GENERATORS.get();
+    }
+
+
+    public static double random(RandomGenerator rand, double min, double max) {
         return min + (max-min) * rand.nextDouble();
     }
 
     public static double random(double min, double max) {
-        return min + (max-min) * Math.random();
+        return random(current(), min, max);
     }
 
     public static double random(double range, boolean abs) {
         return abs ? random(0,range) : random(-range, range);
     }
 
+
+
+    /****************************************************************
+     * Ziggurat sampler of the standard normal distribution, after
+     * Marsaglia and Tsang, with Doornik's 128 layers table :
+     * most draws cost one random long and one multiplication
+     ****************************************************************/
+
+    private static final int ZIGGURAT_LAYERS = 128;
+    // Start of the tail
+    private static final double ZIGGURAT_R = 3.442619855899;
+    // Area of each layer
+    private static final double ZIGGURAT_V = 9.91256303526217e-3;
+
+    // Right edge of each layer, ZIGGURAT_X[0] is the bottom layer's equivalent width
+    private static final double[] ZIGGURAT_X = new double[ZIGGURAT_LAYERS+1];
+    // Part of each layer fully under the curve : ZIGGURAT_X[i+1]/ZIGGURAT_X[i]
+    private static final double[] ZIGGURAT_RATIO = new double[ZIGGURAT_LAYERS];
+
+    static {
+        double f = Math.exp(-0.5 * ZIGGURAT_R * ZIGGURAT_R);
+        ZIGGURAT_X[0] = ZIGGURAT_V / f;
+        ZIGGURAT_X[1] = ZIGGURAT_R;
+        ZIGGURAT_X[ZIGGURAT_LAYERS] = 0;
+        for (int i=2; i<ZIGGURAT_LAYERS; i++) {
+            ZIGGURAT_X[i] = Math.sqrt(-2 * Math.log(ZIGGURAT_V / ZIGGURAT_X[i-1] + f));
+            f = Math.exp(-0.5 * ZIGGURAT_X[i] * ZIGGURAT_X[i]);
+        }
+        for (int i=0; i<ZIGGURAT_LAYERS; i++) {
+            ZIGGURAT_RATIO[i] = ZIGGURAT_X[i+1] / ZIGGURAT_X[i];
+        }
+    }
+
+    /****************************************************************
+     * Draw from the standard normal distribution
+     * @param rand The generator to use
+     * @return The drawn value
+     ****************************************************************/
+    public static double nextGaussian(RandomGenerator rand) {
+        // The 53 high bits give u in [-1,1), the 7 low bits the layer
+        final long bits = rand.nextLong();
+        final int layer = (int) bits & (ZIGGURAT_LAYERS-1);
+        final double u = 2 * ((bits >>> 11) * 0x1.0p-53) - 1;
+
+        // Inside the part of the layer under the curve
+        if (Math.abs(u) < ZIGGURAT_RATIO[layer]) {
+            return u * ZIGGURAT_X[layer];
+        }
+        return nextGaussianOutside(rand, layer, u);
+    }
+
+    // The rare draws outside the part of their layer under the curve, kept out of nextGaussian() so it stays inlined
+    private static double nextGaussianOutside(RandomGenerator rand, int layer, double u) {
+        while (true) {
+            // Bottom layer, out of its rectangle : draw from the tail
+            if (layer == 0) {
+                return gaussianTail(rand, u < 0);
+            }
+            // In the wedge between the layer and the curve
+            final double x = u * ZIGGURAT_X[layer];
+            final double f0 = Math.exp(-0.5 * (ZIGGURAT_X[layer] * ZIGGURAT_X[layer] - x * x));
+            final double f1 = Math.exp(-0.5 * (ZIGGURAT_X[layer+1] * ZIGGURAT_X[layer+1] - x * x));
+            if (f1 + rand.nextDouble() * (f0 - f1) < 1.0) {
+                return x;
+            }
+
+            final long bits = rand.nextLong();
+            layer = (int) bits & (ZIGGURAT_LAYERS-1);
+            u = 2 * ((bits >>> 11) * 0x1.0p-53) - 1;
+            if (Math.abs(u) < ZIGGURAT_RATIO[layer]) {
+                return u * ZIGGURAT_X[layer];
+            }
+        }
+    }
+
+    public static double nextGaussian() {
+        return nextGaussian(current());
+    }
+
+    // Marsaglia's sampling of the normal tail beyond ZIGGURAT_R
+    private static double gaussianTail(RandomGenerator rand, boolean negative) {
+        double x;
+        double y;
+        do {
+            x = Math.log(1 - rand.nextDouble()) / ZIGGURAT_R;
+            y = Math.log(1 - rand.nextDouble());
+        } while (-2 * y < x * x);
+        return negative ? x - ZIGGURAT_R : ZIGGURAT_R - x;
+    }
+
+
+
+    /****************************************************************
+     * Bulk kernels, drawing a whole buffer in one call
+     ****************************************************************/
+
+    // array[offset...offset+length) = uniform values in [min,max)
+    public static void fillUniform(RandomGenerator rand, double[] array, int offset, int length, double min, double max) {
+        final double range = max - min;
+        for (int i = 0; i<length; i++) {
+            array[offset+i] = min + range * rand.nextDouble();
+        }
+    }
+
+    // array[offset...offset+length) = normal values of mean 0
+    public static void fillGaussian(RandomGenerator rand, double[] array, int offset, int length, double stdDeviation) {
+        for (int i = 0; i<length; i++) {
+            array[offset+i] = stdDeviation * nextGaussian(rand);
+        }
+    }
+
+    // array[offset...offset+length) += uniform values in [minChange,maxChange)
+    public static void perturb(RandomGenerator rand, double[] array, int offset, int length, double minChange, double maxChange) {
+        final double range = maxChange - minChange;
+        for (int i = 0; i<length; i++) {
+            array[offset+i] += minChange + range * rand.nextDouble();
+        }
+    }
+
 }
@@ -0,0 +1,125 @@
+package cesure.utils;
+
+/****************************************************************
+ * The blocked loops on top of the VectorKernels
+ * Only usable when MatrixKernels.SIMD is true
+ ****************************************************************/
+public class SimdBackend extends BlockedBackend {
+
+    @Override
+    public String getName() {
+        return "simd";
+    }
+
+    /****************************************************************
+     * Compute result = matrix1 . matrix2 by blocks of matrix2 like
+     * BlockedBackend : the rows of matrix1 go through each block 4
+     * at a time, sharing the loads of the block, and the last ones
+     * with one vectorized axpy per row of matrix1 and row of the
+     * block
+     ****************************************************************/
+    @Override
+    protected void mDotBlocked(Matrix matrix1, Matrix matrix2, Matrix result) {
+        final double[] array1 = matrix1.array;
+        final double[] array2 = matrix2.array;
+        final double[] resultArray = result.array;
+        final int inner = matrix1.nbColumns;
+        final int nbColumns = matrix2.nbColumns;
+
+        result.setZero();
+
+        for (int kk = 0; kk<inner; kk += MDOT_BLOCK_K) {
+            final int kEnd = Math.min(kk + MDOT_BLOCK_K, inner);
+            for (int jj = 0; jj<nbColumns; jj += MDOT_BLOCK_J) {
+                final int blockWidth = Math.min(MDOT_BLOCK_J, nbColumns - jj);
+                int i = 0;
+                for (; i+4<=matrix1.nbRows; i += 4) {
+                    VectorKernels.accumulateProducts4(array1, matrix1.offset + i*matrix1.stride + kk, matrix1.stride, kEnd - kk,
+                            array2, matrix2.offset + kk*matrix2.stride + jj, matrix2.stride, blockWidth,
+                            resultArray, result.offset + i*result.stride + jj, result.stride);
+                }
+                for (; i<matrix1.nbRows; i++) {
+                    final int rowStart1 = matrix1.offset + i*matrix1.stride;
+                    final int resultRowStart = result.offset + i*result.stride + jj;
+                    for (int k = kk; k<kEnd; k++) {
+                        VectorKernels.axpy(array1[rowStart1 + k], array2, matrix2.offset + k*matrix2.stride + jj,
+                                resultArray, resultRowStart, blockWidth);
+                    }
+                }
+            }
+        }
+    }
+
+    // 4 rows at a time with vectorized dot products, sharing the loads of vector
+    @Override
+    public void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        VectorKernels.accumulateDots(vector, vectorOffset, length, matrix, matrixOffset, stride, result, resultOffset, nbRows);
+    }
+
+
+    @Override
+    public void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        VectorKernels.add(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        VectorKernels.substract(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        VectorKernels.pMult(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void mult(double[] a, int aOffset, int length, double value) {
+        VectorKernels.mult(a, aOffset, length, value);
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        VectorKernels.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return VectorKernels.dot(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sum(double[] a, int aOffset, int length) {
+        return VectorKernels.sum(a, aOffset, length);
+    }
+
+    @Override
+    public double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return VectorKernels.sumDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return VectorKernels.sumAbsDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return VectorKernels.sumSquaredDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        return VectorKernels.countThresholdMismatches(a, aOffset, b, bOffset, length, threshold);
+    }
+
+    @Override
+    public void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        VectorKernels.softsign(x, xOffset, result, resultOffset, length, shift, scale);
+    }
+
+    @Override
+    public void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        VectorKernels.softsignDerivative(x, xOffset, result, resultOffset, length, scale);
+    }
+}
@@ -0,0 +1,90 @@
+package cesure.utils;
+
+/****************************************************************
+ * A row vector keeping only its non-zero elements, like a chord
+ * where a handful of the 48 notes are played : its products
+ * only read the matrix rows of these elements
+ ****************************************************************/
+public class SparseRowMatrix {
+
+    public final int nbColumns;
+
+    // Columns of the non-zero elements in increasing order, and their values
+    public final int[] indices;
+    public final double[] values;
+
+    public SparseRowMatrix(int nbColumns, int[] indices, double[] values) {
+        if (indices.length != values.length) {
+            throw new MatrixError("SparseRowMatrix(int,int[],double[]) - "+indices.length+" "+values.length);
+        }
+        for (int i = 0; i<indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= nbColumns || (i > 0 && indices[i] <= indices[i-1])) {
+                throw new MatrixError("SparseRowMatrix(int,int[],double[]) - indices["+i+"]="+indices[i]+" "+nbColumns);
+            }
+        }
+        this.nbColumns = nbColumns;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /****************************************************************
+     * Copy the non-zero elements of a row matrix : later changes
+     * of the row matrix won't be seen
+     * @param matrix The row matrix
+     ****************************************************************/
+    public SparseRowMatrix(Matrix matrix) {
+        if (!matrix.isRowMatrix()) {
+            throw new MatrixError("SparseRowMatrix(Matrix) - m["+matrix.nbRows+","+matrix.nbColumns+"]");
+        }
+        int nbNonZeros = 0;
+        for (int i = 0; i<matrix.nbColumns; i++) {
+            if (matrix.array[matrix.offset + i] != 0) {
+                nbNonZeros++;
+            }
+        }
+        nbColumns = matrix.nbColumns;
+        indices = new int[nbNonZeros];
+        values = new double[nbNonZeros];
+        int k = 0;
+        for (int i = 0; i<matrix.nbColumns; i++) {
+            final double value = matrix.array[matrix.offset + i];
+            if (value != 0) {
+                indices[k] = i;
+                values[k++] = value;
+            }
+        }
+    }
+
+    public int nbNonZeros() {
+        return indices.length;
+    }
+
+    public double get(int i) {
+        if (i < 0 || i >= nbColumns) {throw new MatrixError("SparseRowMatrix.get(int) - "+i+" "+nbColumns);}
+        int low = 0;
+        int high = indices.length - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (indices[middle] < i) {
+                low = middle + 1;
+            } else if (indices[middle] > i) {
+                high = middle - 1;
+            } else {
+                return values[middle];
+            }
+        }
+        return 0;
+    }
+
+    /****************************************************************
+     * Copy the elements into a new dense row matrix
+     * @return The new row matrix
+     ****************************************************************/
+    public Matrix toMatrix() {
+        final Matrix result = new Matrix(1, nbColumns);
+        for (int k = 0; k<indices.length; k++) {
+            result.array[indices[k]] = values[k];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+package cesure.utils;
+
+/****************************************************************
+ * Hands each operation to the backend that was the fastest on
+ * its class of shapes during the calibration of MatrixBackends
+ ****************************************************************/
+public class TunedBackend implements MatrixBackend {
+
+    // Row vector products, on row-major or transposed matrices
+    public final MatrixBackend gemv;
+    // Products under BlockedBackend.MDOT_BLOCKED_THRESHOLD multiply-adds
+    public final MatrixBackend gemmSmall;
+    // Products under ParallelBackend.MDOT_PARALLEL_THRESHOLD multiply-adds
+    public final MatrixBackend gemmMedium;
+    // Bigger products
+    public final MatrixBackend gemmLarge;
+    // Element-wise ops and reductions
+    public final MatrixBackend elementWise;
+
+    public TunedBackend(MatrixBackend gemv, MatrixBackend gemmSmall, MatrixBackend gemmMedium,
+                        MatrixBackend gemmLarge, MatrixBackend elementWise) {
+        this.gemv = gemv;
+        this.gemmSmall = gemmSmall;
+        this.gemmMedium = gemmMedium;
+        this.gemmLarge = gemmLarge;
+        this.elementWise = elementWise;
+    }
+
+    @Override
+    public String getName() {
+        return "auto";
+    }
+
+    @Override
+    public String toString() {
+        return "auto[gemv="+gemv.getName()+" gemm.small="+gemmSmall.getName()+" gemm.medium="+gemmMedium.getName()
+                +" gemm.large="+gemmLarge.getName()+" elementwise="+elementWise.getName()+"]";
+    }
+
+
+    // The backend of a nbRows x inner x nbColumns product
+    private MatrixBackend gemm(int nbRows, int inner, int nbColumns) {
+        final long size = (long) nbRows * inner * nbColumns;
+        if (nbRows == 1) {
+            return gemv;
+        } else if (size < BlockedBackend.MDOT_BLOCKED_THRESHOLD) {
+            return gemmSmall;
+        } else if (size < ParallelBackend.MDOT_PARALLEL_THRESHOLD) {
+            return gemmMedium;
+        } else {
+            return gemmLarge;
+        }
+    }
+
+    @Override
+    public void mDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        gemm(matrix1.nbRows, matrix1.nbColumns, matrix2.nbColumns).mDot(matrix1, matrix2, result);
+    }
+
+    @Override
+    public void mDotRowVector(Matrix vector, Matrix matrix, Matrix result) {
+        gemv.mDotRowVector(vector, matrix, result);
+    }
+
+    @Override
+    public void transposeMDot(Matrix matrix1, Matrix matrix2, Matrix result) {
+        gemm(matrix1.nbColumns, matrix1.nbRows, matrix2.nbColumns).transposeMDot(matrix1, matrix2, result);
+    }
+
+    @Override
+    public void mDotTranspose(Matrix matrix1, Matrix matrix2, Matrix result) {
+        gemm(matrix1.nbRows, matrix1.nbColumns, matrix2.nbRows).mDotTranspose(matrix1, matrix2, result);
+    }
+
+    @Override
+    public void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        gemv.accumulateDots(vector, vectorOffset, length, matrix, matrixOffset, stride, result, resultOffset, nbRows);
+    }
+
+
+    @Override
+    public void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        elementWise.add(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        elementWise.substract(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        elementWise.pMult(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public void mult(double[] a, int aOffset, int length, double value) {
+        elementWise.mult(a, aOffset, length, value);
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        elementWise.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return elementWise.dot(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sum(double[] a, int aOffset, int length) {
+        return elementWise.sum(a, aOffset, length);
+    }
+
+    @Override
+    public double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return elementWise.sumDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return elementWise.sumAbsDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return elementWise.sumSquaredDifference(a, aOffset, b, bOffset, length);
+    }
+
+    @Override
+    public int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        return elementWise.countThresholdMismatches(a, aOffset, b, bOffset, length, threshold);
+    }
+
+    @Override
+    public void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        elementWise.softsign(x, xOffset, result, resultOffset, length, shift, scale);
+    }
+
+    @Override
+    public void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        elementWise.softsignDerivative(x, xOffset, result, resultOffset, length, scale);
+    }
+}
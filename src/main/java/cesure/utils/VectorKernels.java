@@ -0,0 +1,413 @@
+package cesure.utils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/****************************************************************
+ * SIMD versions of the MatrixKernels array kernels, using the
+ * jdk.incubator.vector module
+ * Only call them when MatrixKernels.SIMD is true : this class
+ * can't even be loaded when the module isn't available
+ ****************************************************************/
+class VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+
+    static void add(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .add(DoubleVector.fromArray(SPECIES, b, bOffset+i))
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] += b[bOffset+i];
+        }
+    }
+
+    static void substract(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOffset+i))
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] -= b[bOffset+i];
+        }
+    }
+
+    static void pMult(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .mul(DoubleVector.fromArray(SPECIES, b, bOffset+i))
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] *= b[bOffset+i];
+        }
+    }
+
+    static void mult(double[] a, int aOffset, int length, double value) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .mul(value)
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] *= value;
+        }
+    }
+
+    static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        final DoubleVector alphaVector = DoubleVector.broadcast(SPECIES, alpha);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, xOffset+i)
+                    .fma(alphaVector, DoubleVector.fromArray(SPECIES, y, yOffset+i))
+                    .intoArray(y, yOffset+i);
+        }
+        for (; i<length; i++) {
+            y[yOffset+i] += alpha * x[xOffset+i];
+        }
+    }
+
+    static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            sums = DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .fma(DoubleVector.fromArray(SPECIES, b, bOffset+i), sums);
+        }
+        double result = sums.reduceLanes(VectorOperators.ADD);
+        for (; i<length; i++) {
+            result += a[aOffset+i] * b[bOffset+i];
+        }
+        return result;
+    }
+
+    static double sum(double[] a, int aOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, a, aOffset+i));
+        }
+        double result = sums.reduceLanes(VectorOperators.ADD);
+        for (; i<length; i++) {
+            result += a[aOffset+i];
+        }
+        return result;
+    }
+
+
+    // result = shift + scale * x/(1+|x|)
+    static void softsign(double[] x, int xOffset, double[] result, int resultOffset, int length, double shift, double scale) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            final DoubleVector v = DoubleVector.fromArray(SPECIES, x, xOffset+i);
+            v.div(v.abs().add(1)).mul(scale).add(shift)
+                    .intoArray(result, resultOffset+i);
+        }
+        for (; i<length; i++) {
+            final double v = x[xOffset+i];
+            result[resultOffset+i] = shift + scale*(v/(1+Math.abs(v)));
+        }
+    }
+
+    // result = scale / (1+|x|)^2
+    static void softsignDerivative(double[] x, int xOffset, double[] result, int resultOffset, int length, double scale) {
+        final int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            final DoubleVector d = DoubleVector.fromArray(SPECIES, x, xOffset+i).abs().add(1);
+            DoubleVector.broadcast(SPECIES, scale).div(d.mul(d))
+                    .intoArray(result, resultOffset+i);
+        }
+        for (; i<length; i++) {
+            final double d = 1 + Math.abs(x[xOffset+i]);
+            result[resultOffset+i] = scale/(d*d);
+        }
+    }
+
+
+    // 4 rows at a time, sharing the loads of vector
+    static void accumulateDots(double[] vector, int vectorOffset, int length, double[] matrix, int matrixOffset, int stride,
+                               double[] result, int resultOffset, int nbRows) {
+        final int bound = SPECIES.loopBound(length);
+        int j = 0;
+        for (; j+4<=nbRows; j += 4) {
+            final int row0 = matrixOffset + j*stride;
+            final int row1 = row0 + stride;
+            final int row2 = row1 + stride;
+            final int row3 = row2 + stride;
+            DoubleVector sums0 = DoubleVector.zero(SPECIES);
+            DoubleVector sums1 = sums0;
+            DoubleVector sums2 = sums0;
+            DoubleVector sums3 = sums0;
+            int i = 0;
+            for (; i<bound; i += SPECIES.length()) {
+                final DoubleVector v = DoubleVector.fromArray(SPECIES, vector, vectorOffset+i);
+                sums0 = DoubleVector.fromArray(SPECIES, matrix, row0+i).fma(v, sums0);
+                sums1 = DoubleVector.fromArray(SPECIES, matrix, row1+i).fma(v, sums1);
+                sums2 = DoubleVector.fromArray(SPECIES, matrix, row2+i).fma(v, sums2);
+                sums3 = DoubleVector.fromArray(SPECIES, matrix, row3+i).fma(v, sums3);
+            }
+            double sum0 = sums0.reduceLanes(VectorOperators.ADD);
+            double sum1 = sums1.reduceLanes(VectorOperators.ADD);
+            double sum2 = sums2.reduceLanes(VectorOperators.ADD);
+            double sum3 = sums3.reduceLanes(VectorOperators.ADD);
+            for (; i<length; i++) {
+                final double v = vector[vectorOffset+i];
+                sum0 += v * matrix[row0+i];
+                sum1 += v * matrix[row1+i];
+                sum2 += v * matrix[row2+i];
+                sum3 += v * matrix[row3+i];
+            }
+            result[resultOffset+j] += sum0;
+            result[resultOffset+j+1] += sum1;
+            result[resultOffset+j+2] += sum2;
+            result[resultOffset+j+3] += sum3;
+        }
+        for (; j<nbRows; j++) {
+            result[resultOffset+j] += dot(vector, vectorOffset, matrix, matrixOffset + j*stride, length);
+        }
+    }
+
+    // The 4 rows of result from resultOffset += the 4 rows of matrix1 from offset1 . the inner x
+    // nbColumns matrix2 from offset2 : each vector of matrix2 is loaded once for the 4 rows, and
+    // the accumulators of 4 rows x 2 vectors stay in registers over the whole inner dimension
+    static void accumulateProducts4(double[] matrix1, int offset1, int stride1, int inner,
+                                    double[] matrix2, int offset2, int stride2, int nbColumns,
+                                    double[] result, int resultOffset, int resultStride) {
+        final int vectorLength = SPECIES.length();
+        final int a0 = offset1;
+        final int a1 = a0 + stride1;
+        final int a2 = a1 + stride1;
+        final int a3 = a2 + stride1;
+        final int r0 = resultOffset;
+        final int r1 = r0 + resultStride;
+        final int r2 = r1 + resultStride;
+        final int r3 = r2 + resultStride;
+        int j = 0;
+        for (; j + 2*vectorLength <= nbColumns; j += 2*vectorLength) {
+            final int j1 = j + vectorLength;
+            DoubleVector c00 = DoubleVector.fromArray(SPECIES, result, r0+j);
+            DoubleVector c01 = DoubleVector.fromArray(SPECIES, result, r0+j1);
+            DoubleVector c10 = DoubleVector.fromArray(SPECIES, result, r1+j);
+            DoubleVector c11 = DoubleVector.fromArray(SPECIES, result, r1+j1);
+            DoubleVector c20 = DoubleVector.fromArray(SPECIES, result, r2+j);
+            DoubleVector c21 = DoubleVector.fromArray(SPECIES, result, r2+j1);
+            DoubleVector c30 = DoubleVector.fromArray(SPECIES, result, r3+j);
+            DoubleVector c31 = DoubleVector.fromArray(SPECIES, result, r3+j1);
+            int b = offset2 + j;
+            for (int k = 0; k<inner; k++, b += stride2) {
+                final DoubleVector b0 = DoubleVector.fromArray(SPECIES, matrix2, b);
+                final DoubleVector b1 = DoubleVector.fromArray(SPECIES, matrix2, b + vectorLength);
+                DoubleVector x = DoubleVector.broadcast(SPECIES, matrix1[a0+k]);
+                c00 = b0.fma(x, c00);
+                c01 = b1.fma(x, c01);
+                x = DoubleVector.broadcast(SPECIES, matrix1[a1+k]);
+                c10 = b0.fma(x, c10);
+                c11 = b1.fma(x, c11);
+                x = DoubleVector.broadcast(SPECIES, matrix1[a2+k]);
+                c20 = b0.fma(x, c20);
+                c21 = b1.fma(x, c21);
+                x = DoubleVector.broadcast(SPECIES, matrix1[a3+k]);
+                c30 = b0.fma(x, c30);
+                c31 = b1.fma(x, c31);
+            }
+            c00.intoArray(result, r0+j);
+            c01.intoArray(result, r0+j1);
+            c10.intoArray(result, r1+j);
+            c11.intoArray(result, r1+j1);
+            c20.intoArray(result, r2+j);
+            c21.intoArray(result, r2+j1);
+            c30.intoArray(result, r3+j);
+            c31.intoArray(result, r3+j1);
+        }
+        for (; j + vectorLength <= nbColumns; j += vectorLength) {
+            DoubleVector c0 = DoubleVector.fromArray(SPECIES, result, r0+j);
+            DoubleVector c1 = DoubleVector.fromArray(SPECIES, result, r1+j);
+            DoubleVector c2 = DoubleVector.fromArray(SPECIES, result, r2+j);
+            DoubleVector c3 = DoubleVector.fromArray(SPECIES, result, r3+j);
+            int b = offset2 + j;
+            for (int k = 0; k<inner; k++, b += stride2) {
+                final DoubleVector b0 = DoubleVector.fromArray(SPECIES, matrix2, b);
+                c0 = b0.fma(DoubleVector.broadcast(SPECIES, matrix1[a0+k]), c0);
+                c1 = b0.fma(DoubleVector.broadcast(SPECIES, matrix1[a1+k]), c1);
+                c2 = b0.fma(DoubleVector.broadcast(SPECIES, matrix1[a2+k]), c2);
+                c3 = b0.fma(DoubleVector.broadcast(SPECIES, matrix1[a3+k]), c3);
+            }
+            c0.intoArray(result, r0+j);
+            c1.intoArray(result, r1+j);
+            c2.intoArray(result, r2+j);
+            c3.intoArray(result, r3+j);
+        }
+        for (; j<nbColumns; j++) {
+            double sum0 = 0;
+            double sum1 = 0;
+            double sum2 = 0;
+            double sum3 = 0;
+            int b = offset2 + j;
+            for (int k = 0; k<inner; k++, b += stride2) {
+                final double value = matrix2[b];
+                sum0 += matrix1[a0+k] * value;
+                sum1 += matrix1[a1+k] * value;
+                sum2 += matrix1[a2+k] * value;
+                sum3 += matrix1[a3+k] * value;
+            }
+            result[r0+j] += sum0;
+            result[r1+j] += sum1;
+            result[r2+j] += sum2;
+            result[r3+j] += sum3;
+        }
+    }
+
+    static double sumDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOffset+i)));
+        }
+        double result = sums.reduceLanes(VectorOperators.ADD);
+        for (; i<length; i++) {
+            result += a[aOffset+i] - b[bOffset+i];
+        }
+        return result;
+    }
+
+    static double sumAbsDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOffset+i)).abs());
+        }
+        double result = sums.reduceLanes(VectorOperators.ADD);
+        for (; i<length; i++) {
+            result += Math.abs(a[aOffset+i] - b[bOffset+i]);
+        }
+        return result;
+    }
+
+    static double sumSquaredDifference(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        final int bound = SPECIES.loopBound(length);
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            final DoubleVector d = DoubleVector.fromArray(SPECIES, a, aOffset+i)
+                    .sub(DoubleVector.fromArray(SPECIES, b, bOffset+i));
+            sums = d.fma(d, sums);
+        }
+        double result = sums.reduceLanes(VectorOperators.ADD);
+        for (; i<length; i++) {
+            final double d = a[aOffset+i] - b[bOffset+i];
+            result += d*d;
+        }
+        return result;
+    }
+
+    static int countThresholdMismatches(double[] a, int aOffset, double[] b, int bOffset, int length, double threshold) {
+        final int bound = SPECIES.loopBound(length);
+        int result = 0;
+        int i = 0;
+        for (; i<bound; i += SPECIES.length()) {
+            final VectorMask<Double> aAbove = DoubleVector.fromArray(SPECIES, a, aOffset+i).compare(VectorOperators.GT, threshold);
+            final VectorMask<Double> bAbove = DoubleVector.fromArray(SPECIES, b, bOffset+i).compare(VectorOperators.GT, threshold);
+            result += aAbove.eq(bAbove).not().trueCount();
+        }
+        for (; i<length; i++) {
+            if ((a[aOffset+i] > threshold) != (b[bOffset+i] > threshold)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+
+    static void add(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        final int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, a, aOffset+i)
+                    .add(FloatVector.fromArray(FLOAT_SPECIES, b, bOffset+i))
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] += b[bOffset+i];
+        }
+    }
+
+    static void substract(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        final int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, a, aOffset+i)
+                    .sub(FloatVector.fromArray(FLOAT_SPECIES, b, bOffset+i))
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] -= b[bOffset+i];
+        }
+    }
+
+    static void pMult(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        final int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, a, aOffset+i)
+                    .mul(FloatVector.fromArray(FLOAT_SPECIES, b, bOffset+i))
+                    .intoArray(a, aOffset+i);
+        }
+        for (; i<length; i++) {
+            a[aOffset+i] *= b[bOffset+i];
+        }
+    }
+
+    static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+        final int bound = FLOAT_SPECIES.loopBound(length);
+        final FloatVector alphaVector = FloatVector.broadcast(FLOAT_SPECIES, alpha);
+        int i = 0;
+        for (; i<bound; i += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, x, xOffset+i)
+                    .fma(alphaVector, FloatVector.fromArray(FLOAT_SPECIES, y, yOffset+i))
+                    .intoArray(y, yOffset+i);
+        }
+        for (; i<length; i++) {
+            y[yOffset+i] += alpha * x[xOffset+i];
+        }
+    }
+
+    // result = shift + scale * x/(1+|x|)
+    static void softsign(float[] x, int xOffset, float[] result, int resultOffset, int length, float shift, float scale) {
+        final int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i<bound; i += FLOAT_SPECIES.length()) {
+            final FloatVector v = FloatVector.fromArray(FLOAT_SPECIES, x, xOffset+i);
+            v.div(v.abs().add(1)).mul(scale).add(shift)
+                    .intoArray(result, resultOffset+i);
+        }
+        for (; i<length; i++) {
+            final float v = x[xOffset+i];
+            result[resultOffset+i] = shift + scale*(v/(1+Math.abs(v)));
+        }
+    }
+}